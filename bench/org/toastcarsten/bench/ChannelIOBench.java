@@ -0,0 +1,193 @@
+package org.toastcarsten.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.toastcarsten.server.ChannelIO;
+import org.toastcarsten.server.Frame;
+import org.toastcarsten.server.FrameEncoder;
+import org.toastcarsten.shared.FrameDecoder;
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing frames against in-memory channels, so only the framing code is measured.
+ * Encoding server lines through command objects and Strings is compared to {@link FrameEncoder}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelIOBench {
+
+    private static final String LINE = "alice: message with some typical chat text in it";
+
+    private final NullChannel out = new NullChannel();
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private final Frame shared = Frame.of(LINE);
+    private final Protocol p = new Protocol((IServer)null);
+    // 100 joins within one presence window: one frame per join, or one for all of them
+    private List<String> names;
+
+    /**
+     * Endlessly returns the same bytes, in chunks of a fixed size, so frames end up split across reads.
+     */
+    static class RepeatingChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunk;
+        private int pos = 0;
+
+        RepeatingChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            int n = Math.min(chunk, dst.remaining());
+            for (int i = 0; i < n; ++i) {
+                dst.put(data[pos++]);
+                if (pos == data.length)
+                    pos = 0;
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Accepts and discards everything.
+     */
+    static class NullChannel implements GatheringByteChannel {
+        long written = 0;
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; ++i)
+                n += write(srcs[i]);
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reading {
+        @Param({ "100", "1400" })
+        int chunk;
+        FrameDecoder decoder;
+        RepeatingChannel in;
+
+        @Setup
+        public void setup() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 64; ++i)
+                sb.append("message number ").append(i).append(" with some typical chat text in it\n");
+            decoder = ChannelIO.newDecoder();
+            in = new RepeatingChannel(sb.toString().getBytes(StandardCharsets.UTF_8), chunk);
+        }
+    }
+
+    @Benchmark
+    public void readAndDecode(Reading s, Blackhole bh) throws Exception {
+        ChannelIO.read(s.in, s.decoder);
+        int frames = 0;
+        while (s.decoder.next())
+            ++frames;
+        bh.consume(frames);
+    }
+
+    @Setup
+    public void setup() {
+        names = new ArrayList<>();
+        for (int i = 0; i < 100; ++i)
+            names.add("user" + i);
+    }
+
+    @Benchmark
+    public void encodeAndDrain() throws IOException {
+        queue.add(Frame.of(LINE).view(false));
+        ChannelIO.drain(out, queue, gather);
+    }
+
+    @Benchmark
+    public void drainBatchOf32() throws IOException {
+        for (int i = 0; i < 32; ++i)
+            queue.add(shared.view(false));
+        ChannelIO.drain(out, queue, gather);
+    }
+
+    @Benchmark
+    public void errorViaString(Blackhole bh) {
+        bh.consume(Frame.of(p.new ErrorMessage(Protocol.Error.CommandNotFound).toString()));
+    }
+
+    @Benchmark
+    public void errorViaEncoder(Blackhole bh) {
+        bh.consume(FrameEncoder.error(Protocol.Error.CommandNotFound));
+    }
+
+    @Benchmark
+    public void userLeftViaString(Blackhole bh) {
+        bh.consume(Frame.of(p.new UserLeft("alice42", Protocol.Reason.timeout).toString()));
+    }
+
+    @Benchmark
+    public void userLeftViaEncoder(Blackhole bh) {
+        bh.consume(FrameEncoder.userLeft("alice42", Protocol.Reason.timeout));
+    }
+
+    @Benchmark
+    public void userJoinedOneByOne(Blackhole bh) {
+        for (int i = 0; i < names.size(); ++i)
+            bh.consume(FrameEncoder.userJoined(names.subList(i, i + 1)));
+    }
+
+    @Benchmark
+    public void userJoinedAtOnce(Blackhole bh) {
+        bh.consume(FrameEncoder.userJoined(names));
+    }
+}
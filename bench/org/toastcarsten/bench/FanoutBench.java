@@ -0,0 +1,145 @@
+package org.toastcarsten.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.toastcarsten.server.ChatServer;
+import org.toastcarsten.server.Clock;
+import org.toastcarsten.server.Frame;
+import org.toastcarsten.server.LoopbackTransport;
+import org.toastcarsten.server.Reactor;
+import org.toastcarsten.server.ServerConfig;
+import org.toastcarsten.server.ServerStatsMBean;
+import org.toastcarsten.server.SimulatedClock;
+import org.toastcarsten.server.Transport;
+import org.toastcarsten.server.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multicast fan-out to a varying number of logged in users, backed by in-memory connections.
+ *
+ * {@link #multicast} is the whole path of a chat line to everyone: {@link ChatServer#multicast(String, String)}
+ * encodes the line and hands it to the reactor, which queues it for every user and writes it to the connections
+ * when the server is stepped. {@link #reactorFanout} only measures the queueing part of one reactor:
+ * nothing is written, the queues are discarded after every operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBench {
+
+    private static final String MESSAGE = "message with some typical chat text in it";
+    private static final int MAX_STEPS = 1000;
+
+    @State(Scope.Thread)
+    public static class Server {
+        @Param({ "10", "100", "1000", "10000" })
+        int participants;
+        ChatServer server;
+        ServerStatsMBean stats;
+        String sender;
+
+        @Setup
+        public void setup() throws IOException {
+            ServerConfig config = new ServerConfig();
+            config.workers = 0;
+            config.acceptBacklog = participants;
+            config.acceptBatch = participants;
+            config.admissionBudget = participants;
+            config.admissionQueue = participants;
+            SimulatedClock clock = new SimulatedClock();
+            LoopbackTransport transport = new LoopbackTransport();
+            server = new ChatServer(0, config, transport, clock);
+            stats = server.getStats();
+            List<LoopbackTransport.Client> clients = new ArrayList<>(participants);
+            for (int i = 0; i < participants; ++i) {
+                LoopbackTransport.Client c = transport.connect(server.getPort());
+                c.setDiscarding(true);
+                clients.add(c);
+            }
+            drive();
+            for (int i = 0; i < participants; ++i)
+                clients.get(i).send("/login bench" + i);
+            for (int steps = 0; stats.getLoggedInUsers() < participants; ++steps) {
+                if (steps == MAX_STEPS)
+                    throw new IllegalStateException(stats.getLoggedInUsers() + " of " + participants + " clients logged in");
+                server.step();
+            }
+            // the joins are announced once the presence window has passed
+            clock.advance(config.presenceWindowMillis);
+            drive();
+            sender = "bench0";
+        }
+
+        /**
+         * Steps the server until it has written everything it queued.
+         */
+        void drive() {
+            int steps = 0;
+            do {
+                server.step();
+                if (++steps == MAX_STEPS)
+                    throw new IllegalStateException("the server makes no progress");
+            } while (stats.getOutboundBacklogBytes() > 0);
+        }
+    }
+
+    @Benchmark
+    public void multicast(Server s) throws IOException {
+        s.server.multicast(s.sender, s.sender + ": " + MESSAGE);
+        s.drive();
+    }
+
+    @State(Scope.Thread)
+    public static class Fanout {
+        @Param({ "10", "100", "1000", "10000" })
+        int participants;
+        Reactor reactor;
+        List<User> users;
+        // keeps the client side of the connections open for the lifetime of the benchmark
+        List<LoopbackTransport.Client> clients;
+        String sender;
+
+        @Setup
+        public void setup() throws Exception {
+            LoopbackTransport transport = new LoopbackTransport();
+            ChatServer server = new ChatServer(0, new ServerConfig(), transport, Clock.SYSTEM);
+            reactor = new Reactor(server);
+            Transport.Listener listener = transport.listen(0, participants, reactor.getPoller());
+            users = new ArrayList<>(participants);
+            clients = new ArrayList<>(participants);
+            for (int i = 0; i < participants; ++i) {
+                clients.add(transport.connect(listener.getLocalPort()));
+                User u = reactor.register(listener.accept());
+                u.setName("fanout" + i);
+                users.add(u);
+            }
+            sender = users.get(0).getName();
+        }
+    }
+
+    @Benchmark
+    public void reactorFanout(Fanout s, Blackhole bh) {
+        Frame f = Frame.of(s.sender + ": " + MESSAGE);
+        s.reactor.fanout(s.sender, f);
+        bh.consume(f);
+        // keeps the queues and their accounting empty, so nobody becomes a slow consumer
+        for (int i = 0; i < s.users.size(); ++i)
+            s.users.get(i).discardOutbound();
+    }
+}
@@ -0,0 +1,204 @@
+package org.toastcarsten.bench;
+
+import org.toastcarsten.server.ChatServer;
+import org.toastcarsten.server.LoopbackTransport;
+import org.toastcarsten.server.ServerConfig;
+import org.toastcarsten.server.ServerStatsMBean;
+import org.toastcarsten.server.SimulatedClock;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Drives a selector server with many virtual clients over a {@link LoopbackTransport} and a {@link SimulatedClock},
+ * everything on the calling thread: no sockets, no ports, no timers, and the same bytes in the same order on every run.
+ * The clients drop what they get, so only the server is measured.
+ *
+ * Every phase reports its operations, the time, the bytes allocated per operation and the bytes written to the clients:
+ * all clients log in, a few clients write to everyone for some rounds (an operation is a delivered message),
+ * everyone joins a small room and writes to it for some rounds (again per delivered message), and finally everyone times out.
+ *
+ * Usage: LoopbackSimulation [clients=100000] [senders=10] [rounds=10] [roomSize=10] [workers=0]
+ */
+public class LoopbackSimulation {
+
+    private static final int MAX_STEPS = 100_000;
+
+    private static final com.sun.management.ThreadMXBean threads = allocationBean();
+
+    private final ChatServer server;
+    private final ServerStatsMBean stats;
+    private final SimulatedClock clock;
+    private final ServerConfig config;
+    private final LoopbackTransport.Client[] clients;
+    private long sent = 0;
+
+    private LoopbackSimulation(int clients, int workers) throws IOException {
+        config = new ServerConfig();
+        config.workers = workers;
+        // a steady state, not a connection storm: everyone is taken over in the first cycle
+        config.acceptBacklog = clients;
+        config.acceptBatch = clients;
+        config.admissionBudget = clients;
+        config.admissionQueue = clients;
+        clock = new SimulatedClock();
+        LoopbackTransport transport = new LoopbackTransport();
+        server = new ChatServer(0, config, transport, clock);
+        stats = server.getStats();
+        this.clients = new LoopbackTransport.Client[clients];
+        for (int i = 0; i < clients; ++i) {
+            this.clients[i] = transport.connect(server.getPort());
+            this.clients[i].setDiscarding(true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 100_000, senders = 10, rounds = 10, roomSize = 10, workers = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "clients": clients = Integer.parseInt(value); break;
+                case "senders": senders = Integer.parseInt(value); break;
+                case "rounds": rounds = Integer.parseInt(value); break;
+                case "roomSize": roomSize = Integer.parseInt(value); break;
+                case "workers": workers = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    return;
+            }
+        }
+
+        LoopbackSimulation sim = new LoopbackSimulation(clients, workers);
+        System.out.println("phase                ops       ms          ops/s       B/op    steps     MB out");
+        Phase p = sim.new Phase("connect");
+        p.steps += sim.drive();
+        p.end(clients);
+
+        p = sim.new Phase("login");
+        for (int i = 0; i < clients; ++i)
+            sim.send(i, "/login sim" + i);
+        p.steps += sim.drive();
+        // the joins are announced together once the presence window has passed
+        sim.clock.advance(sim.config.presenceWindowMillis);
+        p.steps += sim.drive();
+        p.end(clients);
+        if (sim.stats.getLoggedInUsers() != clients)
+            throw new IllegalStateException(sim.stats.getLoggedInUsers() + " of " + clients + " clients logged in");
+
+        p = sim.new Phase("multicast");
+        int stride = Math.max(1, clients / Math.max(1, senders));
+        for (int r = 0; r < rounds; ++r) {
+            for (int s = 0; s < senders; ++s)
+                sim.send(s * stride % clients, "round " + r + " message with some typical chat text in it");
+            p.steps += sim.drive();
+            // within the rate limits of the senders
+            sim.clock.advance(100);
+        }
+        p.end((long)rounds * senders * (clients - 1));
+
+        p = sim.new Phase("join");
+        for (int i = 0; i < clients; ++i)
+            sim.send(i, "/join #room" + i / roomSize);
+        p.steps += sim.drive();
+        p.end(clients);
+
+        p = sim.new Phase("roomcast");
+        for (int r = 0; r < rounds; ++r) {
+            for (int i = 0; i < clients; ++i)
+                sim.send(i, "round " + r);
+            p.steps += sim.drive();
+            sim.clock.advance(100);
+        }
+        p.end((long)rounds * roomDeliveries(clients, roomSize));
+
+        p = sim.new Phase("timeout");
+        // nobody said anything for five minutes
+        sim.clock.advance(301_000);
+        p.steps += sim.drive();
+        sim.clock.advance(sim.config.presenceWindowMillis);
+        p.steps += sim.drive();
+        p.end(clients);
+        int closed = 0;
+        for (LoopbackTransport.Client c : sim.clients)
+            closed += c.isClosed() ? 1 : 0;
+        if (closed != clients || sim.stats.getConnectedUsers() != 0)
+            throw new IllegalStateException(closed + " of " + clients + " clients timed out");
+        System.exit(0);
+    }
+
+    /**
+     * @return messages delivered when every client writes to its room once
+     */
+    private static long roomDeliveries(int clients, int roomSize) {
+        long n = 0;
+        for (int from = 0; from < clients; from += roomSize) {
+            long members = Math.min(roomSize, clients - from);
+            n += members * (members - 1);
+        }
+        return n;
+    }
+
+    private void send(int client, String line) throws IOException {
+        if (!clients[client].send(line))
+            throw new IllegalStateException("client " + client + " cannot send, the server does not read");
+        sent += line.length() + 1;
+    }
+
+    /**
+     * Steps the server until it has read everything the clients sent and written everything it queued.
+     * @return the number of steps
+     */
+    private int drive() {
+        int steps = 0;
+        do {
+            server.step();
+            if (++steps == MAX_STEPS)
+                throw new IllegalStateException("the server makes no progress");
+        } while (stats.getBytesIn() < sent || stats.getOutboundBacklogBytes() > 0);
+        return steps;
+    }
+
+    /**
+     * @return bytes allocated by the calling thread so far, 0 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        if (threads == null)
+            return 0;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean)bean;
+        if (!b.isThreadAllocatedMemorySupported())
+            return null;
+        b.setThreadAllocatedMemoryEnabled(true);
+        return b;
+    }
+
+    private class Phase {
+        private final String name;
+        private final long start = System.nanoTime();
+        private final long allocated = allocatedBytes();
+        private final long bytesOut = stats.getBytesOut();
+        int steps = 0;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        void end(long ops) {
+            long nanos = System.nanoTime() - start;
+            long bytes = allocatedBytes() - allocated;
+            System.out.println(String.format(Locale.ROOT, "%-10s %12d %8d %14.0f %10.1f %8d %10.1f",
+                    name, ops, nanos / 1_000_000, ops * 1e9 / nanos, (double)bytes / ops, steps,
+                    (stats.getBytesOut() - bytesOut) / 1e6));
+        }
+    }
+}
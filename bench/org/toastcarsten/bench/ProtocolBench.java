@@ -0,0 +1,162 @@
+package org.toastcarsten.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.toastcarsten.server.Userlist;
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of client and server lines, and construction of userlist answers.
+ * The versioned userlist is measured with a full list that is cached, one that is rebuilt and a delta.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBench {
+
+    // roughly what a busy server sees: mostly chat, some commands, a few invalid lines
+    private static final String[] clientMix = {
+            "hey, is anyone around?",
+            "sure, what's up",
+            "did you see the game yesterday",
+            "no, I was at work the whole evening :(",
+            "lol",
+            "/login alice42",
+            "/userlist",
+            "/userlist 4711",
+            "I think the build is broken again, can someone have a look at the last commit?",
+            "/logout see you tomorrow",
+            "/join",
+    };
+
+    private static final String[] serverMix = {
+            "alice: hey, is anyone around?",
+            "bob: sure, what's up",
+            "carol: did you see the game yesterday",
+            "dave: no, I was at work the whole evening :(",
+            "alice: lol",
+            "/userjoined erin",
+            "/userleft frank timeout",
+            "/error CommandNotFound",
+            "/server maintenance at midnight",
+            "/userlist alice, bob, carol, dave, erin",
+            "/userlist 4711 1/1 alice, bob, carol, dave, erin",
+            "/userlist 4709..4711 +erin -frank",
+    };
+
+    private final Protocol p = new Protocol((IServer)null);
+    private byte[][] clientBytes;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        clientBytes = new byte[clientMix.length][];
+        for (int i = 0; i < clientMix.length; ++i)
+            clientBytes[i] = clientMix[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void parseClientMix(Blackhole bh) {
+        byte[] b = clientBytes[next++ % clientBytes.length];
+        try {
+            bh.consume(p.parseClient(b, 0, b.length));
+        } catch (Exception e) {
+            bh.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void parseServerMix(Blackhole bh) {
+        try {
+            bh.consume(p.parseServer(serverMix[next++ % serverMix.length]));
+        } catch (Exception e) {
+            bh.consume(e);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Names {
+        @Param({ "10", "1000", "100000" })
+        int users;
+        List<String> names;
+
+        @Setup
+        public void setup() {
+            names = new ArrayList<>(users);
+            for (int i = 0; i < users; ++i)
+                names.add("user" + i);
+        }
+    }
+
+    @Benchmark
+    public void userlistAnswer(Names s, Blackhole bh) {
+        bh.consume(p.new UserlistAnswer(s.names).toString());
+    }
+
+    /**
+     * The versioned list of everyone, with 50000 users.
+     */
+    @State(Scope.Thread)
+    public static class Versioned {
+        private static final int USERS = 50000;
+        private final Object holder = new Object();
+        Userlist userlist;
+        // 2 changes since then
+        long base;
+        Userlist changing;
+        boolean present = true;
+
+        @Setup
+        public void setup() {
+            userlist = new Userlist();
+            for (int i = 0; i < USERS; ++i)
+                userlist.added("user" + i, holder);
+            base = userlist.version();
+            userlist.removed("user1", holder);
+            userlist.added("newcomer", holder);
+            changing = new Userlist();
+            for (int i = 0; i < USERS; ++i)
+                changing.added("user" + i, holder);
+        }
+    }
+
+    @Benchmark
+    public void userlistCached(Versioned v, Blackhole bh) {
+        bh.consume(v.userlist.answer(-1));
+    }
+
+    @Benchmark
+    public void userlistDelta(Versioned v, Blackhole bh) {
+        bh.consume(v.userlist.answer(v.base));
+    }
+
+    @Benchmark
+    public void userlistAfterChange(Versioned v, Blackhole bh) {
+        // every login or logout invalidates the pages
+        if (v.present)
+            v.changing.removed("user0", v.holder);
+        else
+            v.changing.added("user0", v.holder);
+        v.present = !v.present;
+        bh.consume(v.changing.answer(-1));
+    }
+}
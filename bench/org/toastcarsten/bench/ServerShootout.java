@@ -0,0 +1,117 @@
+package org.toastcarsten.bench;
+
+import org.toastcarsten.client.LoadGenerator;
+import org.toastcarsten.shared.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the selector server and the blocking server head to head on this machine.
+ * Every server runs in a JVM of its own and is loaded by the {@link LoadGenerator} running in this one,
+ * once for every connection count.
+ *
+ * Usage: ServerShootout [connections=100,1000] [rate=2000] [duration=10] [workers=0] [mix=chat:100] [size=64]
+ * workers is the number of worker reactors of the selector server.
+ */
+public class ServerShootout {
+
+    public static void main(String[] args) throws Exception {
+        String connections = "100,1000", mix = "chat:100";
+        double rate = 2000;
+        int duration = 10, workers = 0, size = 64;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "connections": connections = value; break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "workers": workers = Integer.parseInt(value); break;
+                case "mix": mix = value; break;
+                case "size": size = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    return;
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        int port = 47800;
+        for (String c : connections.split(",")) {
+            int n = Integer.parseInt(c.trim());
+            for (String mode : new String[] { "selector", "blocking" }) {
+                System.out.println();
+                System.out.println("=== " + mode + ", " + n + " connections ===");
+                Process server = start(mode, ++port, workers);
+                try {
+                    awaitListening(port);
+                    LoadGenerator gen = new LoadGenerator(new InetSocketAddress("localhost", port), n, rate, duration, mix, size);
+                    gen.run();
+                    Histogram h = gen.getLatency();
+                    rows.add(String.format(Locale.ROOT, "%-9s %11d %12.0f %9.2f %9.2f %9.2f %8d %8s",
+                            mode, n, h.count() / gen.getElapsedSeconds(),
+                            h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6,
+                            gen.getErrors(), residentMegabytes(server)));
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("mode      connections  delivered/s   p50 ms    p99 ms  p99.9 ms   errors   rss MB");
+        for (String row : rows)
+            System.out.println(row);
+        System.exit(0);
+    }
+
+    private static Process start(String mode, int port, int workers) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder pb = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Dtoastcarsten.mode=" + mode,
+                "-Dtoastcarsten.port=" + port,
+                "-Dtoastcarsten.workers=" + workers,
+                "org.toastcarsten.server.ChatServer");
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "shootout-" + mode + ".log"));
+        return pb.start();
+    }
+
+    private static void awaitListening(int port) throws InterruptedException, IOException {
+        for (int i = 0; i < 100; ++i) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start listening on port " + port);
+    }
+
+    /**
+     * @return resident set size of the server process, or "-" where /proc is not available
+     */
+    private static String residentMegabytes(Process p) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + p.pid() + "/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return String.valueOf(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return "-";
+    }
+}
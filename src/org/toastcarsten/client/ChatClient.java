@@ -2,28 +2,117 @@ package org.toastcarsten.client;
 
 import org.toastcarsten.shared.IClient;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
 
+/**
+ * Console client: lines typed are sent to the server, everything the server sends is printed.
+ * The connection is kept up by a {@link ClientConnection}, so typing never waits for the network.
+ *
+ * Usage: ChatClient [host] [port] [name], localhost and 47711 by default
+ */
 public class ChatClient implements IClient {
 
-    public static void main(String[] args) {
-        ChatClient c = new ChatClient();
+    private final ClientConnection connection;
+    // the list of everyone as of userlistVersion, only touched by the dispatch thread
+    private final TreeSet<String> users = new TreeSet<>();
+    private final List<String> pages = new ArrayList<>();
+    private volatile long userlistVersion = -1;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 47711;
         // TODO create Chat Client (GUI)
+        ChatClient c = new ChatClient(new InetSocketAddress(host, port));
+        if (args.length > 2)
+            c.connection.login(args[2]);
+        c.run(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+    }
+
+    public ChatClient(InetSocketAddress address) throws IOException {
+        connection = new ClientConnection(address, this);
+        // versions are only meaningful to the server that handed them out
+        connection.setOnConnect(() -> userlistVersion = -1);
+    }
+
+    /**
+     * Sends the lines read until the input ends or the user logs out.
+     * @param in the input
+     */
+    public void run(BufferedReader in) throws IOException, InterruptedException {
+        connection.start();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+            boolean queued;
+            if (line.startsWith("/login "))
+                queued = connection.login(line.substring(7));
+            else if (line.equals("/logout") || line.startsWith("/logout ")) {
+                connection.logout();
+                break;
+            }
+            else if (line.equals("/userlist") && userlistVersion >= 0)
+                // only the changes since the list we have
+                queued = connection.send("/userlist " + userlistVersion);
+            else
+                queued = connection.send(line);
+            if (!queued)
+                printHl("Not sent, the server has not taken the previous lines yet.");
+        }
+        if (line == null)
+            connection.close();
+        connection.awaitClosed();
     }
 
     @Override
     public void print(String text) {
-        // TODO implement printing of regular messages
+        System.out.println(text);
     }
 
     @Override
     public void printHl(String text) {
-        // TODO implement printing of highlighted messages
+        System.out.println("* " + text);
     }
 
     @Override
     public void recvUserlist(Collection<String> list) {
-        // TODO handle the userlist answer
+        printHl("Users: " + String.join(", ", list));
+    }
+
+    @Override
+    public void recvUserlistPage(long version, int page, int pages, Collection<String> list) {
+        if (page == 1)
+            this.pages.clear();
+        this.pages.addAll(list);
+        if (page < pages)
+            return;
+        users.clear();
+        users.addAll(this.pages);
+        this.pages.clear();
+        userlistVersion = version;
+        recvUserlist(users);
+    }
+
+    @Override
+    public void recvUserlistDelta(long since, long version, Collection<String> added, Collection<String> removed) {
+        if (since != userlistVersion) {
+            // an answer to a request from before a reconnect, ask again
+            userlistVersion = -1;
+            connection.send("/userlist");
+            return;
+        }
+        users.removeAll(removed);
+        users.addAll(added);
+        userlistVersion = version;
+        recvUserlist(users);
     }
 
     @Override
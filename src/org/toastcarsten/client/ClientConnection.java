@@ -0,0 +1,383 @@
+package org.toastcarsten.client;
+
+import org.toastcarsten.errors.CommandNotFoundException;
+import org.toastcarsten.shared.BufferPool;
+import org.toastcarsten.shared.FrameDecoder;
+import org.toastcarsten.shared.IClient;
+import org.toastcarsten.shared.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The network side of a client: one non-blocking connection to the server, served by a thread of its own.
+ *
+ * Commands are queued and written as soon as the socket takes them, without waiting for answers,
+ * so a login, a userlist request and the first messages can go out in a single write.
+ * Received lines are parsed on the I/O thread, but the {@link IClient} callbacks run on a separate dispatch thread,
+ * so a slow user interface delays the callbacks, not the socket.
+ *
+ * A lost connection is reopened after a random delay that grows with every failed attempt,
+ * so clients that lost the same server do not all come back at the same moment. The name is sent again on reconnect.
+ */
+public class ClientConnection {
+
+    // queued commands beyond this are refused instead of piling up while the server is away
+    private static final int MAX_OUTBOUND_BYTES = 1024 * 1024;
+    // received commands waiting for the dispatch thread, reading stops above the high mark until the low mark is reached
+    private static final int DISPATCH_HIGH_WATERMARK = 64 * 1024;
+    private static final int DISPATCH_LOW_WATERMARK = 16 * 1024;
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    // ends the dispatch thread once the I/O thread has finished
+    private static final Runnable CLOSED = () -> {};
+
+    private final InetSocketAddress address;
+    private final IClient client;
+    private final Protocol protocol;
+    private final Selector selector;
+    private final BufferPool readBuffers = new BufferPool(16 * 1024, 4);
+    private final FrameDecoder decoder = new FrameDecoder(readBuffers);
+
+    // filled by any thread, emptied by the I/O thread
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private boolean wakeupPending = false;
+    private volatile String name;
+    private volatile boolean closed = false;
+    private boolean loggingOut = false;
+
+    // owned by the I/O thread
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected = false;
+    // read by the dispatch thread
+    private volatile boolean readPaused = false;
+    private int attempts = 0;
+    private long reconnectAt = 0;
+
+    private final LinkedBlockingQueue<Runnable> dispatch = new LinkedBlockingQueue<>();
+    private final AtomicInteger dispatchBacklog = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile Runnable onConnect;
+
+    /**
+     * @param address the server
+     * @param client receives everything the server sends, on the dispatch thread
+     */
+    public ClientConnection(InetSocketAddress address, IClient client) throws IOException {
+        this.address = address;
+        this.client = client;
+        this.protocol = new Protocol(client);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * @param onConnect run on the dispatch thread after every (re)connect, e.g. to drop state that belonged to the old connection
+     */
+    public void setOnConnect(Runnable onConnect) {
+        this.onConnect = onConnect;
+    }
+
+    /**
+     * Starts the I/O and dispatch threads, which connect and keep the connection up until {@link #close()}.
+     */
+    public void start() {
+        Thread io = new Thread(this::ioLoop, "toastcarsten-client-io");
+        io.setDaemon(true);
+        io.start();
+        Thread d = new Thread(this::dispatchLoop, "toastcarsten-client-dispatch");
+        d.setDaemon(true);
+        d.start();
+    }
+
+    // --------------- commands ---------------
+
+    /**
+     * Logs in with a name, which is also used for every reconnect.
+     * @param name the name
+     * @return false if the outbound queue is full
+     */
+    public boolean login(String name) {
+        this.name = name;
+        return send(protocol.new Login(name).toString());
+    }
+
+    /**
+     * Logs out, after which the server closes the connection and it is not reopened.
+     * @return false if the outbound queue is full
+     */
+    public boolean logout() {
+        synchronized (lock) {
+            loggingOut = true;
+        }
+        // the command without arguments, toString() would append a space
+        return send(protocol.new Logout().cmd);
+    }
+
+    /**
+     * Queues a line for the server. Lines sent while disconnected go out after the next login.
+     * @param line the line, without line terminator
+     * @return false if the outbound queue is full
+     */
+    public boolean send(String line) {
+        ByteBuffer buf = encode(line);
+        boolean wake;
+        synchronized (lock) {
+            if (closed || queuedBytes + buf.remaining() > MAX_OUTBOUND_BYTES)
+                return false;
+            queued.addLast(buf);
+            queuedBytes += buf.remaining();
+            // one wakeup per batch, the I/O thread takes everything queued until then
+            wake = !wakeupPending;
+            wakeupPending = true;
+        }
+        if (wake)
+            selector.wakeup();
+        return true;
+    }
+
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the connection for good.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits until the connection has been closed, by {@link #close()} or after a {@link #logout()},
+     * and every callback has run.
+     */
+    public void awaitClosed() throws InterruptedException {
+        finished.await();
+    }
+
+    // --------------- I/O thread ---------------
+
+    private void ioLoop() {
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                if (channel == null && now >= reconnectAt)
+                    connect();
+                long timeout = channel == null ? Math.max(1, reconnectAt - now) : 0;
+                selector.select(timeout);
+                for (SelectionKey k : selector.selectedKeys()) {
+                    try {
+                        if (k.isConnectable())
+                            finishConnect();
+                        if (k.isValid() && k.isReadable())
+                            read();
+                        if (k.isValid() && k.isWritable())
+                            flush();
+                    } catch (IOException e) {
+                        disconnected(e.getMessage());
+                    }
+                }
+                selector.selectedKeys().clear();
+                try {
+                    takeQueued();
+                    if (readPaused && dispatchBacklog.get() <= DISPATCH_LOW_WATERMARK)
+                        setReadPaused(false);
+                } catch (IOException e) {
+                    disconnected(e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error in the client I/O loop.");
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            }
+            dispatch.offer(CLOSED);
+        }
+    }
+
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean done = channel.connect(address);
+            key = channel.register(selector, SelectionKey.OP_CONNECT);
+            if (done)
+                finishConnect();
+        } catch (IOException e) {
+            disconnected(e.getMessage());
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        channel.finishConnect();
+        connected = true;
+        attempts = 0;
+        readPaused = false;
+        decoder.setBinary(false);
+        String n = name;
+        if (n != null) {
+            ByteBuffer login = encode(protocol.new Login(n).toString());
+            synchronized (lock) {
+                // unless the login has not been sent at all yet
+                if (!queued.contains(login)) {
+                    queued.addFirst(login);
+                    queuedBytes += login.remaining();
+                }
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        Runnable r = onConnect;
+        if (r != null)
+            submit(r);
+        takeQueued();
+    }
+
+    private void read() throws IOException {
+        int n = decoder.read(channel);
+        if (n < 0) {
+            disconnected("closed by the server");
+            return;
+        }
+        while (decoder.next()) {
+            String line = new String(decoder.array(), decoder.frameOffset(), decoder.frameLength(), StandardCharsets.UTF_8);
+            try {
+                Protocol.ServerCommand cmd = (Protocol.ServerCommand)protocol.parseServer(line);
+                submit(cmd::action);
+            } catch (CommandNotFoundException e) {
+                // e.g. the goodbye after a logout, shown as it is
+                submit(() -> client.print(line));
+            }
+        }
+        if (dispatchBacklog.get() >= DISPATCH_HIGH_WATERMARK)
+            setReadPaused(true);
+    }
+
+    private void submit(Runnable r) {
+        dispatchBacklog.incrementAndGet();
+        dispatch.offer(r);
+    }
+
+    private void setReadPaused(boolean paused) {
+        readPaused = paused;
+        if (key != null && key.isValid())
+            key.interestOps(paused ? key.interestOps() & ~SelectionKey.OP_READ : key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Moves everything queued by other threads to the lines being written, and writes them if connected.
+     */
+    private void takeQueued() throws IOException {
+        if (!connected)
+            return;
+        synchronized (lock) {
+            wakeupPending = false;
+            writing.addAll(queued);
+            queued.clear();
+            queuedBytes = 0;
+        }
+        flush();
+    }
+
+    private void flush() throws IOException {
+        while (!writing.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : writing) {
+                if (n == gather.length)
+                    break;
+                gather[n++] = b;
+            }
+            channel.write(gather, 0, n);
+            while (!writing.isEmpty() && !writing.peekFirst().hasRemaining())
+                writing.pollFirst();
+            if (gather[n - 1].hasRemaining())
+                break;
+        }
+        for (int i = 0; i < gather.length; ++i)
+            gather[i] = null;
+        // OP_WRITE only while the socket cannot take everything
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        key.interestOps(writing.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+    }
+
+    private void disconnected(String reason) {
+        boolean wasConnected = connected;
+        connected = false;
+        if (key != null)
+            key.cancel();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {}
+        channel = null;
+        key = null;
+        boolean done;
+        synchronized (lock) {
+            // lines not started yet are sent after the reconnect, a partly written one is lost
+            while (!writing.isEmpty()) {
+                ByteBuffer b = writing.pollLast();
+                if (b.position() == 0) {
+                    queued.addFirst(b);
+                    queuedBytes += b.remaining();
+                }
+            }
+            done = loggingOut;
+        }
+        if (done) {
+            closed = true;
+            return;
+        }
+        // full jitter: anywhere between 0 and the exponential bound
+        long bound = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempts, 16));
+        long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        ++attempts;
+        reconnectAt = System.currentTimeMillis() + delay;
+        String msg = (wasConnected ? "Connection lost (" : "Could not connect (") + reason + "), retrying in " + delay + " ms.";
+        submit(() -> client.printHl(msg));
+    }
+
+    // --------------- dispatch thread ---------------
+
+    private void dispatchLoop() {
+        while (true) {
+            Runnable r;
+            try {
+                r = dispatch.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r == CLOSED) {
+                finished.countDown();
+                return;
+            }
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                // a failing callback must not end the dispatching
+                e.printStackTrace();
+                System.err.println("Error in a client callback.");
+            }
+            if (dispatchBacklog.decrementAndGet() == DISPATCH_LOW_WATERMARK && readPaused)
+                selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.toastcarsten.client;
+
+import org.toastcarsten.errors.CommandNotFoundException;
+import org.toastcarsten.shared.BufferPool;
+import org.toastcarsten.shared.Compression;
+import org.toastcarsten.shared.FrameDecoder;
+import org.toastcarsten.shared.Histogram;
+import org.toastcarsten.shared.IClient;
+import org.toastcarsten.shared.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Headless load generator. Opens many connections to a server, logs them in and sends chat
+ * at a fixed total rate. Every chat line carries the time it was sent, so the time until it
+ * arrives at each of the other connections measures the end-to-end multicast latency.
+ *
+ * Usage: LoadGenerator [host=localhost] [port=47711] [connections=1000] [rate=1000] [duration=30]
+ *                      [mix=chat:90,userlist:5,logout:5] [size=64] [compress=false]
+ * rate is the number of commands per second over all connections, size the length of a chat line.
+ * With compress=true every connection negotiates compression, see {@link Compression}.
+ */
+public class LoadGenerator {
+
+    private static final String STAMP = "t=";
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final double rate;
+    private final long durationNanos;
+    private final int[] mix;
+    private final String padding;
+    private boolean compress = false;
+
+    private final Selector selector;
+    private final BufferPool readBuffers = new BufferPool(16 * 1024, 16);
+    private final ByteBuffer compressedInput = ByteBuffer.allocate(16 * 1024);
+    private final Random random = new Random(4711);
+    private final List<Bot> bots = new ArrayList<>();
+    private final Histogram latency = new Histogram();
+    private final Histogram interval = new Histogram();
+    private long sentChat = 0, sentUserlist = 0, sentLogout = 0, received = 0, errors = 0;
+    private int nameCounter = 0;
+    private double elapsedSeconds = 0;
+
+    public static void main(String[] args) throws IOException {
+        String host = "localhost";
+        int port = 47711, connections = 1000, duration = 30, size = 64;
+        double rate = 1000;
+        String mix = "chat:90,userlist:5,logout:5";
+        boolean compress = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "host": host = value; break;
+                case "port": port = Integer.parseInt(value); break;
+                case "connections": connections = Integer.parseInt(value); break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "mix": mix = value; break;
+                case "size": size = Integer.parseInt(value); break;
+                case "compress": compress = Boolean.parseBoolean(value); break;
+                default:
+                    System.err.println("Unknown option: " + arg);
+                    return;
+            }
+        }
+        LoadGenerator gen = new LoadGenerator(new InetSocketAddress(host, port), connections, rate, duration, mix, size);
+        gen.setCompress(compress);
+        gen.run();
+    }
+
+    public LoadGenerator(InetSocketAddress address, int connections, double rate, int durationSeconds, String mix, int size) throws IOException {
+        this.address = address;
+        this.connections = connections;
+        this.rate = rate;
+        this.durationNanos = durationSeconds * 1_000_000_000L;
+        this.mix = parseMix(mix);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size)
+            sb.append("lorem ipsum ");
+        this.padding = sb.substring(0, Math.max(0, size - 24));
+        this.selector = Selector.open();
+    }
+
+    /**
+     * @param compress true if the connections should negotiate compression
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * @return cumulative weights of chat, userlist and logout
+     */
+    private static int[] parseMix(String mix) {
+        int chat = 0, userlist = 0, logout = 0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            int w = Integer.parseInt(kv[1].trim());
+            switch (kv[0].trim()) {
+                case "chat": chat = w; break;
+                case "userlist": userlist = w; break;
+                case "logout": logout = w; break;
+                default: throw new IllegalArgumentException("Unknown command in mix: " + kv[0]);
+            }
+        }
+        return new int[] { chat, chat + userlist, chat + userlist + logout };
+    }
+
+    public void run() throws IOException {
+        System.out.println("Connecting " + connections + " clients to " + address + " ...");
+        for (int i = 0; i < connections; ++i)
+            bots.add(new Bot());
+        for (Bot b : bots)
+            b.connect();
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + 1_000_000_000L;
+        long sent = 0, lastReceived = 0, lastSent = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end)
+                break;
+            // send what is due according to the rate, spread over random connections
+            long due = (long)((now - start) / 1e9 * rate);
+            for (; sent < due; ++sent) {
+                Bot b = bots.get(random.nextInt(bots.size()));
+                if (b.loggedIn)
+                    b.act();
+            }
+            if (now >= nextReport) {
+                long total = sentChat + sentUserlist + sentLogout;
+                System.out.println(String.format(Locale.ROOT, "%3ds  sent %8d/s  received %9d/s  p99 %8.2f ms  errors %d",
+                        (now - start) / 1_000_000_000L, total - lastSent, received - lastReceived,
+                        interval.percentile(99) / 1e6, errors));
+                interval.reset();
+                lastSent = total;
+                lastReceived = received;
+                nextReport += 1_000_000_000L;
+            }
+            selector.select(1);
+            Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+            while (itr.hasNext()) {
+                SelectionKey key = itr.next();
+                itr.remove();
+                Bot b = (Bot)key.attachment();
+                try {
+                    if (key.isConnectable())
+                        b.finishConnect();
+                    if (key.isValid() && key.isWritable())
+                        b.flush();
+                    if (key.isValid() && key.isReadable())
+                        b.read();
+                } catch (IOException e) {
+                    ++errors;
+                    b.close();
+                    b.connect();
+                }
+            }
+        }
+        elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        report(elapsedSeconds);
+        for (Bot b : bots)
+            b.close();
+    }
+
+    /**
+     * @return multicast latencies of all chat lines delivered during the last run, in nanoseconds
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return duration of the last run in seconds
+     */
+    public double getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "Duration        %10.1f s", seconds));
+        System.out.println(String.format(Locale.ROOT, "Sent chat       %10d (%.0f/s)", sentChat, sentChat / seconds));
+        System.out.println(String.format(Locale.ROOT, "Sent userlist   %10d (%.0f/s)", sentUserlist, sentUserlist / seconds));
+        System.out.println(String.format(Locale.ROOT, "Sent logout     %10d (%.0f/s)", sentLogout, sentLogout / seconds));
+        System.out.println(String.format(Locale.ROOT, "Delivered chat  %10d (%.0f/s)", latency.count(), latency.count() / seconds));
+        System.out.println(String.format(Locale.ROOT, "Received lines  %10d (%.0f/s)", received, received / seconds));
+        System.out.println(String.format(Locale.ROOT, "Errors          %10d", errors));
+        System.out.println("Multicast latency (ms):");
+        for (double p : new double[] { 50, 90, 99, 99.9 })
+            System.out.println(String.format(Locale.ROOT, "  p%-6s %10.3f", p == 99.9 ? "99.9" : String.valueOf((int)p), latency.percentile(p) / 1e6));
+        System.out.println(String.format(Locale.ROOT, "  max     %10.3f", latency.max() / 1e6));
+        System.out.println(String.format(Locale.ROOT, "  mean    %10.3f", latency.mean() / 1e6));
+    }
+
+    /**
+     * One simulated user.
+     */
+    private class Bot implements IClient {
+
+        private final Protocol protocol = new Protocol(this);
+        private final FrameDecoder decoder = new FrameDecoder(readBuffers);
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private Compression.Decoder inflater;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String name;
+        private boolean loggedIn = false;
+        // version of the last complete userlist, later requests only ask for the changes
+        private long userlistVersion = -1;
+
+        void connect() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(address);
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            decoder.setBinary(false);
+            outbound.clear();
+            userlistVersion = -1;
+            if (compress) {
+                if (inflater != null)
+                    inflater.end();
+                inflater = new Compression.Decoder();
+                outbound.add(ByteBuffer.wrap(new byte[] { Compression.HELLO }));
+            }
+            login();
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void login() throws IOException {
+            name = "load" + (nameCounter++);
+            // pipelined: chat may follow before the server has processed the login
+            send("/login " + name);
+            loggedIn = true;
+        }
+
+        void act() {
+            try {
+                int r = random.nextInt(mix[2]);
+                if (r < mix[0]) {
+                    send(STAMP + System.nanoTime() + " " + padding);
+                    ++sentChat;
+                } else if (r < mix[1]) {
+                    send(userlistVersion < 0 ? "/userlist" : "/userlist " + userlistVersion);
+                    ++sentUserlist;
+                } else {
+                    send("/logout");
+                    ++sentLogout;
+                    // the server closes the connection, come back with a new one
+                    loggedIn = false;
+                }
+            } catch (IOException e) {
+                ++errors;
+            }
+        }
+
+        void send(String line) throws IOException {
+            outbound.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            if (channel.isConnected())
+                flush();
+        }
+
+        void flush() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            int n;
+            if (inflater == null) {
+                n = decoder.read(channel);
+            } else {
+                compressedInput.clear();
+                n = channel.read(compressedInput);
+                compressedInput.flip();
+                inflater.feed(compressedInput, decoder);
+            }
+            if (n < 0) {
+                // closed by the server, e.g. after a logout
+                close();
+                connect();
+                return;
+            }
+            String line;
+            while ((line = decoder.nextFrame()) != null) {
+                ++received;
+                try {
+                    ((Protocol.ServerCommand)protocol.parseServer(line)).action();
+                } catch (CommandNotFoundException e) {
+                    // e.g. the goodbye after a logout
+                }
+            }
+        }
+
+        void close() {
+            try {
+                key.cancel();
+                channel.close();
+            } catch (IOException e) {}
+            loggedIn = false;
+        }
+
+        @Override
+        public void print(String text) {
+            // "<user>: t=<nanos> ..."
+            int i = text.indexOf(STAMP);
+            if (i < 0)
+                return;
+            int j = text.indexOf(' ', i);
+            try {
+                long sentAt = Long.parseLong(text.substring(i + STAMP.length(), j < 0 ? text.length() : j));
+                long d = System.nanoTime() - sentAt;
+                latency.record(d);
+                interval.record(d);
+            } catch (NumberFormatException e) {
+                ++errors;
+            }
+        }
+
+        @Override
+        public void printHl(String text) {
+        }
+
+        @Override
+        public void recvUserlist(Collection<String> list) {
+        }
+
+        @Override
+        public void recvUserlistPage(long version, int page, int pages, Collection<String> list) {
+            if (page == pages)
+                userlistVersion = version;
+        }
+
+        @Override
+        public void recvUserlistDelta(long since, long version, Collection<String> added, Collection<String> removed) {
+            userlistVersion = version;
+        }
+
+        @Override
+        public void handleNameError() {
+            ++errors;
+            try {
+                login();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.toastcarsten.errors;
+
+import java.io.IOException;
+
+/**
+ * A line exceeded the maximum frame size. The decoder drops it up to the next newline,
+ * so the stream stays usable and the frames after it are decoded as usual.
+ */
+public class FrameTooLongException extends IOException {
+
+    private final int bytesRead;
+
+    /**
+     * @param msg the message
+     * @param bytesRead bytes received by the read that ran over the limit, they have been consumed
+     */
+    public FrameTooLongException(String msg, int bytesRead) {
+        super(msg);
+        this.bytesRead = bytesRead;
+    }
+
+    public int getBytesRead() {
+        return bytesRead;
+    }
+}
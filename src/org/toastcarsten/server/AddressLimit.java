@@ -0,0 +1,48 @@
+package org.toastcarsten.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the connections per client address, so a single host cannot take all the connections of the server.
+ * Acquired when a connection is accepted and released when it is closed, possibly on different threads.
+ */
+public class AddressLimit {
+
+    private final int max;
+    private final ConcurrentHashMap<InetAddress, Integer> counts = new ConcurrentHashMap<>();
+
+    /**
+     * @param max connections per address, 0 for no limit
+     */
+    public AddressLimit(int max) {
+        this.max = max;
+    }
+
+    /**
+     * @param address address of a freshly accepted connection
+     * @return false if the address already has the maximum number of connections, the connection should be closed then
+     */
+    public boolean acquire(InetAddress address) {
+        if (max <= 0 || address == null)
+            return true;
+        boolean[] granted = new boolean[1];
+        counts.compute(address, (a, n) -> {
+            int count = n == null ? 0 : n;
+            if (count >= max)
+                return n;
+            granted[0] = true;
+            return count + 1;
+        });
+        return granted[0];
+    }
+
+    /**
+     * @param address address of a connection that has been acquired and is closed now
+     */
+    public void release(InetAddress address) {
+        if (max <= 0 || address == null)
+            return;
+        counts.computeIfPresent(address, (a, n) -> n <= 1 ? null : n - 1);
+    }
+}
@@ -0,0 +1,96 @@
+package org.toastcarsten.server;
+
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+/**
+ * The slow consumer policy, the same for reactor users and the connections of a {@link BlockingServer}.
+ *
+ * A consumer becomes congested once its outbound queue passes the high watermark, or once the outbound backlog
+ * shared with other consumers passes the budget while its own queue holds more than the low watermark.
+ * It stays congested until its queue has drained to the low watermark. While it is congested, presence frames
+ * are skipped and the oldest chat lines make room for new ones, and if that does not help it is disconnected,
+ * each as far as {@link ServerConfig#slowConsumerPolicy} allows. Control frames are queued while congested too,
+ * but no frame of any kind is queued past twice the high watermark: a consumer that gets there is disconnected,
+ * whatever the policy, so a client that keeps sending commands without reading cannot grow its queue without bound.
+ *
+ * The queues themselves belong to the callers, they only decide here and do what the verdict says.
+ */
+final class Backpressure {
+
+    /**
+     * What to do with a frame for a consumer.
+     */
+    enum Verdict {
+        /** Queue it. */
+        Queue,
+        /** Drop it and count it as shed. */
+        Shed,
+        /** Disconnect the consumer, the frame and its queue are dropped. */
+        Disconnect
+    }
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final long hardCap;
+    private final long budget;
+    private final Set<ServerConfig.SlowConsumerPolicy> policy;
+
+    /**
+     * @param config watermarks and policy
+     * @param budget bytes all consumers sharing the backlog may queue together
+     */
+    Backpressure(ServerConfig config, long budget) {
+        this.highWatermark = config.outboundHighWatermark;
+        this.lowWatermark = Math.min(config.outboundLowWatermark, config.outboundHighWatermark);
+        this.hardCap = 2L * config.outboundHighWatermark;
+        this.budget = budget;
+        this.policy = config.slowConsumerPolicy;
+    }
+
+    /**
+     * @param queued bytes in the outbound queue of the consumer
+     * @param size bytes about to be queued
+     * @param backlog bytes queued for all consumers sharing the budget
+     * @return true if queueing them puts the consumer over its limits, it is congested from then on
+     */
+    boolean over(long queued, int size, long backlog) {
+        return queued + size > highWatermark || (backlog + size > budget && queued > lowWatermark);
+    }
+
+    /**
+     * @param queued bytes left in the outbound queue of a congested consumer
+     * @return true if the consumer has caught up
+     */
+    boolean drained(long queued) {
+        return queued <= lowWatermark;
+    }
+
+    /**
+     * Decides about a frame for a congested consumer.
+     * @param kind what the frame is for
+     * @param queued bytes in the outbound queue of the consumer, frames of all kinds
+     * @param size bytes of the frame
+     * @param over result of {@link #over(long, int, long)} for the frame
+     * @param dropOldestChat drops queued chat lines, oldest first, until at most the given number of bytes is queued,
+     *                       true if it got there; each dropped line is counted as shed by the caller
+     * @return the verdict
+     */
+    Verdict admit(Frame.Kind kind, long queued, int size, boolean over, LongPredicate dropOldestChat) {
+        if (kind == Frame.Kind.Control)
+            return queued + size > hardCap ? Verdict.Disconnect : Verdict.Queue;
+        if (kind == Frame.Kind.Presence && policy.contains(ServerConfig.SlowConsumerPolicy.SkipPresence))
+            return Verdict.Shed;
+        if (!over)
+            return Verdict.Queue;
+        boolean dropChat = kind == Frame.Kind.Chat && policy.contains(ServerConfig.SlowConsumerPolicy.DropChat);
+        if (dropChat && dropOldestChat.test(lowWatermark))
+            return Verdict.Queue;
+        if (policy.contains(ServerConfig.SlowConsumerPolicy.Disconnect))
+            return Verdict.Disconnect;
+        // nothing older left to drop, drop the new line instead
+        if (dropChat)
+            return Verdict.Shed;
+        return queued + size > hardCap ? Verdict.Disconnect : Verdict.Queue;
+    }
+}
@@ -0,0 +1,645 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.errors.CommandNotFoundException;
+import org.toastcarsten.errors.FrameTooLongException;
+import org.toastcarsten.shared.BinaryCodec;
+import org.toastcarsten.shared.Compression;
+import org.toastcarsten.shared.FrameDecoder;
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import javax.naming.NameAlreadyBoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An alternative to the reactors of the ChatServer: every connection is served by blocking I/O on two threads of its own.
+ * The reader parses and executes the commands of the user, the writer drains the outbound queue of the user.
+ * Other threads never touch a socket, they only hand frames over to the writer of the recipient.
+ *
+ * Virtual threads are used if the JVM has them (Java 21 and later), otherwise platform threads from a cached pool.
+ * Names and rooms live in {@link User} and {@link Room}, just like for the reactor users.
+ * Select it with <code>-Dtoastcarsten.mode=blocking</code>.
+ */
+public class BlockingServer implements IServer {
+
+    private static final int TIMEOUT_MILLIS = 300000;
+    private static final int READ_CHUNK = 2048;
+
+    private final ServerSocketChannel listener;
+    private final Protocol protocol;
+    private final ServerConfig config;
+    private final ExecutorService threads;
+    private final boolean virtual;
+    private final History history;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AddressLimit addressLimit;
+    private final Presence presence;
+    // written by all connection threads
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder commands = new LongAdder();
+    // unsent bytes of all connections
+    private final AtomicLong backlog = new AtomicLong();
+    private final Backpressure backpressure;
+    private final LongAdder droppedChat = new LongAdder();
+    private final LongAdder skippedPresence = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder lobbyTimeouts = new LongAdder();
+    private final LongAdder compressIn = new LongAdder();
+    private final LongAdder compressOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+
+    public BlockingServer(int port, ServerConfig config) throws IOException {
+        this.config = config;
+        backpressure = new Backpressure(config, config.outboundBudget);
+        protocol = new Protocol(this);
+        history = new History(config);
+        Room.setRemovalListener(history::forget);
+        addressLimit = new AddressLimit(config.maxConnectionsPerIp);
+        presence = new Presence(config.presenceWindowMillis, Clock.SYSTEM, f -> multicast("", f));
+        ExecutorService vt = newVirtualThreadExecutor();
+        virtual = vt != null;
+        threads = virtual ? vt : Executors.newCachedThreadPool(new NamingThreadFactory());
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port), config.acceptBacklog);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if this JVM does not have virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // looked up reflectively, so the server still compiles and runs on Java 17
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static class NamingThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "toastcarsten-connection-" + counter.getAndIncrement());
+        }
+    }
+
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * @return true if connections are served by virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Accepts connections on the calling thread until the listener is closed.
+     */
+    public void run() {
+        presence.start();
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error accepting a client.");
+                continue;
+            }
+            if (!addressLimit.acquire(channel.socket().getInetAddress())) {
+                refused.increment();
+                close(channel);
+                continue;
+            }
+            try {
+                Connection c = new Connection(channel);
+                connections.add(c);
+                threads.execute(c::readLoop);
+                threads.execute(c::writeLoop);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error registering a client.");
+                addressLimit.release(channel.socket().getInetAddress());
+                close(channel);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * The threads serving one user.
+     */
+    public class Connection {
+
+        private final SocketChannel channel;
+        private final User user;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        // guarded by lock, filled by any thread, drained by the writer
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ArrayDeque<Frame.Kind> outboundKinds = new ArrayDeque<>();
+        private long outboundBytes = 0;
+        private boolean congested = false;
+        private boolean closed = false;
+        private volatile boolean evicted = false;
+        // until the login, reads time out at this point instead of after TIMEOUT_MILLIS of silence
+        private final long loginDeadline;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            // reads through the socket adaptor honour the timeout, which replaces the TimeoutService
+            loginDeadline = System.currentTimeMillis() + config.loginTimeoutMillis;
+            channel.socket().setSoTimeout(config.loginTimeoutMillis);
+            user = new User(this);
+            user.setRateLimiters(RateLimiter.of(config.commandRate, config.commandBurst), RateLimiter.of(config.byteRate, config.byteBurst));
+        }
+
+        /**
+         * Hands a message that is always delivered to the writer of this connection, see {@link #queue(ByteBuffer, Frame.Kind)}.
+         * @param buf the encoded message, consumed by the writer
+         */
+        public void queue(ByteBuffer buf) {
+            queue(buf, Frame.Kind.Control);
+        }
+
+        /**
+         * Hands a message to the writer of this connection. Never blocks on the socket.
+         * The slow consumer policy is the same as for reactor users, see {@link Backpressure}.
+         * @param buf the encoded message, consumed by the writer
+         * @param kind what the message is for
+         */
+        public void queue(ByteBuffer buf, Frame.Kind kind) {
+            // a ReentrantLock rather than synchronized, so waiting does not pin virtual threads
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                int size = buf.remaining();
+                boolean over = backpressure.over(outboundBytes, size, backlog.get());
+                if (over)
+                    congested = true;
+                if (congested) {
+                    switch (backpressure.admit(kind, outboundBytes, size, over, this::dropOldestChat)) {
+                        case Shed:
+                            if (kind == Frame.Kind.Chat)
+                                droppedChat.increment();
+                            else
+                                skippedPresence.increment();
+                            return;
+                        case Disconnect:
+                            evict();
+                            return;
+                        default:
+                            break;
+                    }
+                }
+                outbound.add(buf);
+                outboundKinds.add(kind);
+                outboundBytes += size;
+                backlog.addAndGet(size);
+                if (outbound.size() == 1)
+                    notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // called with the lock held
+        private boolean dropOldestChat(long target) {
+            Iterator<ByteBuffer> bufs = outbound.iterator();
+            Iterator<Frame.Kind> kinds = outboundKinds.iterator();
+            while (outboundBytes > target && bufs.hasNext()) {
+                ByteBuffer buf = bufs.next();
+                // the writer takes messages out of the queue before writing them, so none of these is partially written
+                if (kinds.next() != Frame.Kind.Chat)
+                    continue;
+                bufs.remove();
+                kinds.remove();
+                outboundBytes -= buf.remaining();
+                backlog.addAndGet(-buf.remaining());
+                droppedChat.increment();
+            }
+            return outboundBytes <= target;
+        }
+
+        // called with the lock held
+        private void evict() {
+            evicted = true;
+            evictions.increment();
+            backlog.addAndGet(-outboundBytes);
+            outbound.clear();
+            outboundKinds.clear();
+            outboundBytes = 0;
+            closed = true;
+            notEmpty.signal();
+            // the writer may be stuck in a write to the client that stopped reading, closing wakes it and the reader up
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+
+        /**
+         * Stops accepting messages. The writer still sends what has been queued so far, then closes the socket.
+         */
+        void shutdown() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isClosed() {
+            lock.lock();
+            try {
+                return closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void readLoop() {
+            FrameDecoder decoder = user.getDecoder();
+            RateLimiter commandLimiter = user.getCommandLimiter();
+            RateLimiter byteLimiter = user.getByteLimiter();
+            byte[] chunk = new byte[READ_CHUNK];
+            boolean lobby = true;
+            try {
+                InputStream in = channel.socket().getInputStream();
+                while (!isClosed()) {
+                    if (byteLimiter != null)
+                        pause(byteLimiter);
+                    if (lobby) {
+                        lobby = user.getName() == null;
+                        // the deadline stays where it is, whatever the client sends before logging in
+                        channel.socket().setSoTimeout(lobby ? (int)Math.max(1, loginDeadline - System.currentTimeMillis()) : TIMEOUT_MILLIS);
+                    }
+                    int n = in.read(chunk);
+                    if (n < 0)
+                        break;
+                    bytesIn.add(n);
+                    long now = System.nanoTime();
+                    if (user.isRateLimited() && (commandLimiter == null || commandLimiter.isFull(now)) && (byteLimiter == null || byteLimiter.isFull(now)))
+                        user.setRateLimited(false);
+                    if (byteLimiter != null)
+                        byteLimiter.take(n, now);
+                    try {
+                        decoder.append(ByteBuffer.wrap(chunk, 0, n));
+                    } catch (FrameTooLongException e) {
+                        // the line is dropped up to its newline, the connection goes on
+                        write(user, FrameEncoder.error(Protocol.Error.LineTooLong));
+                    }
+                    if (!user.isNegotiated() && user.getCompressor() == null && config.compressionLevel > 0 && decoder.skipIf(Compression.HELLO)) {
+                        // nothing has been queued before the negotiation, so the confirmation can bypass the writer
+                        channel.write(ByteBuffer.wrap(new byte[] { Compression.HELLO }));
+                        user.setCompressor(new Compression.Encoder(config.compressionLevel, config.compressionThreshold));
+                    }
+                    if (!user.isNegotiated() && decoder.pending() > 0) {
+                        // binary clients announce themselves with their first byte, everyone else speaks text
+                        if (decoder.skipIf(BinaryCodec.HELLO)) {
+                            decoder.setBinary(true);
+                            queue(ByteBuffer.wrap(new byte[] { BinaryCodec.HELLO }));
+                        }
+                        user.setNegotiated();
+                    }
+                    while (!isClosed()) {
+                        if (commandLimiter != null && decoder.pending() > 0)
+                            pause(commandLimiter);
+                        if (!decoder.next())
+                            break;
+                        if (commandLimiter != null)
+                            commandLimiter.take(1, System.nanoTime());
+                        process(decoder);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                expire();
+            } catch (IOException e) {
+                // reset by the client or a malformed binary frame, drop the connection like the reactors do
+            } finally {
+                String name = user.getName();
+                User.release(user);
+                shutdown();
+                connections.remove(this);
+                addressLimit.release(channel.socket().getInetAddress());
+                if (evicted && name != null)
+                    presence.left(name, Protocol.Reason.evicted);
+            }
+        }
+
+        /**
+         * Waits until the limiter has a token again, the blocking counterpart of deregistering OP_READ.
+         * Meanwhile unread input stays in the socket buffer and TCP slows the client down.
+         * @param limiter one of the rate limits of the user
+         */
+        private void pause(RateLimiter limiter) throws IOException {
+            long now = System.nanoTime();
+            if (limiter.isAvailable(now))
+                return;
+            throttles.increment();
+            if (!user.isRateLimited()) {
+                user.setRateLimited(true);
+                write(user, FrameEncoder.error(Protocol.Error.RateLimited));
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(limiter.nanosUntilAvailable(now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void process(FrameDecoder decoder) throws IOException {
+            Protocol.ClientCommand cmd;
+            try {
+                if (decoder.isBinary())
+                    cmd = BinaryCodec.decodeClient(protocol, decoder.array(), decoder.frameOffset(), decoder.frameLength());
+                else
+                    cmd = (Protocol.ClientCommand)protocol.parseClient(decoder.array(), decoder.frameOffset(), decoder.frameLength());
+            } catch (CommandNotFoundException e) {
+                write(user, FrameEncoder.error(Protocol.Error.CommandNotFound));
+                return;
+            }
+            commands.increment();
+            if (cmd instanceof Protocol.Login) {
+                try {
+                    String old = user.getName();
+                    user.setName(cmd.args);
+                    if (!cmd.args.equals(old)) {
+                        if (old != null)
+                            presence.left(old, Protocol.Reason.logout);
+                        presence.joined(cmd.args);
+                    }
+                    // a rename has seen the history already
+                    if (old == null)
+                        replay(user, null);
+                } catch (NameAlreadyBoundException e) {
+                    write(user, FrameEncoder.error(Protocol.Error.NameAlreadyInUse));
+                }
+                return;
+            }
+            String username = user.getName();
+            if (username == null) {
+                // user still in lobby, should only be able to login
+                write(user, FrameEncoder.error(Protocol.Error.CommandNotAllowed));
+                return;
+            }
+            cmd.action(username);
+        }
+
+        private void expire() {
+            String name = user.getName();
+            if (name == null)
+                lobbyTimeouts.increment();
+            write(user, FrameEncoder.userTimeout());
+            User.release(user);
+            shutdown();
+            if (name != null)
+                presence.left(name, Protocol.Reason.timeout);
+        }
+
+        private void writeLoop() {
+            ByteBuffer[] gather = new ByteBuffer[config.writeBatch];
+            try {
+                while (true) {
+                    int n = 0;
+                    lock.lock();
+                    try {
+                        while (outbound.isEmpty() && !closed)
+                            notEmpty.await();
+                        if (outbound.isEmpty())
+                            return;
+                        while (n < gather.length && !outbound.isEmpty()) {
+                            ByteBuffer buf = outbound.poll();
+                            outboundKinds.poll();
+                            outboundBytes -= buf.remaining();
+                            backlog.addAndGet(-buf.remaining());
+                            gather[n++] = buf;
+                        }
+                        if (congested && backpressure.drained(outboundBytes))
+                            congested = false;
+                    } finally {
+                        lock.unlock();
+                    }
+                    Compression.Encoder compressor = user.getCompressor();
+                    if (compressor == null) {
+                        writeFully(gather, n);
+                    } else {
+                        for (int i = 0; i < n; ++i)
+                            compressIn.add(gather[i].remaining());
+                        long start = System.nanoTime();
+                        ByteBuffer[] blocks = compressor.encode(gather, n).toArray(new ByteBuffer[0]);
+                        compressNanos.add(System.nanoTime() - start);
+                        for (ByteBuffer b : blocks)
+                            compressOut.add(b.remaining());
+                        writeFully(blocks, blocks.length);
+                    }
+                    Arrays.fill(gather, 0, n, null);
+                }
+            } catch (IOException | InterruptedException e) {
+                // the reader fails on the closed socket and releases the user
+            } finally {
+                user.endCompression();
+                shutdown();
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            }
+        }
+
+        private void writeFully(ByteBuffer[] bufs, int n) throws IOException {
+            // a blocking channel may still return early, e.g. when interrupted by a signal
+            while (bufs[n - 1].hasRemaining())
+                bytesOut.add(channel.write(bufs, 0, n));
+        }
+    }
+
+    private static void write(User u, Frame frame) {
+        Connection c = u.getConnection();
+        if (c != null)
+            c.queue(frame.view(u), frame.getKind());
+    }
+
+    @Override
+    public void send(String username, String message) {
+        User u = User.get(username);
+        if (u != null)
+            write(u, Frame.reply(message));
+    }
+
+    @Override
+    public void left(String user, Protocol.Reason reason) {
+        presence.left(user, reason);
+    }
+
+    @Override
+    public void sendError(String username, Protocol.Error error) {
+        User u = User.get(username);
+        if (u != null)
+            write(u, FrameEncoder.error(error));
+    }
+
+    @Override
+    public void sendUserlist(String username, long since) {
+        User u = User.get(username);
+        if (u != null) {
+            for (Frame f : User.getUserlist().answer(since))
+                write(u, f);
+        }
+    }
+
+    @Override
+    public void multicast(String sender, String text) {
+        // encode once, every recipient only gets a view of the same bytes
+        multicast(sender, Frame.of(text));
+    }
+
+    private void multicast(String sender, Frame frame) {
+        for (User u : User.getParticipants()) {
+            if (!u.getName().equals(sender))
+                write(u, frame);
+        }
+    }
+
+    @Override
+    public void broadcast(String text) {
+        multicast("", text);
+    }
+
+    @Override
+    public void roomcast(String room, String sender, String text) {
+        roomcast(room, sender, Frame.of(text));
+    }
+
+    private void roomcast(String room, String sender, Frame frame) {
+        Room r = Room.get(room);
+        if (r == null)
+            return;
+        for (User u : r.getMembers()) {
+            if (!sender.equals(u.getName()))
+                write(u, frame);
+        }
+    }
+
+    @Override
+    public void chat(String room, String sender, String line) {
+        // encoded once for the fan-out and the history
+        Frame frame = Frame.of(line);
+        if (room == null)
+            multicast(sender, frame);
+        else
+            roomcast(room, sender, frame);
+        history.append(room, frame);
+    }
+
+    /**
+     * Sends the recent history of a conversation to a user who just entered it.
+     * @param u the user
+     * @param room name of the room, or null for the conversation of everyone
+     */
+    private void replay(User u, String room) {
+        for (Frame f : history.recent(room, config.historyReplay))
+            write(u, f);
+    }
+
+    @Override
+    public void join(String user, String room) {
+        User u = User.get(user);
+        Room.join(room, u);
+        u.addRoom(room);
+        roomcast(room, "", protocol.new RoomJoined(room, user).toString());
+        replay(u, room);
+    }
+
+    @Override
+    public void part(String user, String room) {
+        User u = User.get(user);
+        if (room.isEmpty())
+            room = u.getActiveRoom() == null ? "" : u.getActiveRoom();
+        if (!u.removeRoom(room)) {
+            sendError(user, Protocol.Error.CommandNotAllowed);
+            return;
+        }
+        Room.part(room, u);
+        String parted = protocol.new RoomParted(room, user).toString();
+        send(user, parted);
+        roomcast(room, user, parted);
+    }
+
+    @Override
+    public String getRoom(String user) {
+        User u = User.get(user);
+        return u == null ? null : u.getActiveRoom();
+    }
+
+    @Override
+    public void logout(String name) {
+        User u = User.get(name);
+        if (u == null)
+            return;
+        User.release(u);
+        // the reader stops after the current command, the writer after the goodbye
+        u.getConnection().shutdown();
+    }
+
+    @Override
+    public boolean isAdmin(String user) {
+        return config.admins.contains(user);
+    }
+
+    @Override
+    public String stats() {
+        return "mode=blocking threads=" + (virtual ? "virtual" : "platform")
+                + " connected=" + connections.size()
+                + " loggedin=" + User.getParticipants().size()
+                + " bytes_in=" + bytesIn.sum()
+                + " bytes_out=" + bytesOut.sum()
+                + " commands=" + commands.sum()
+                + " backlog_bytes=" + backlog.get()
+                + " dropped_chat=" + droppedChat.sum()
+                + " skipped_presence=" + skippedPresence.sum()
+                + " evictions=" + evictions.sum()
+                + " throttles=" + throttles.sum()
+                + " refused=" + refused.sum()
+                + " lobby_timeouts=" + lobbyTimeouts.sum()
+                + " compress_in=" + compressIn.sum()
+                + " compress_out=" + compressOut.sum()
+                + " compress_cpu_us=" + compressNanos.sum() / 1000;
+    }
+}
@@ -1,31 +1,121 @@
 package org.toastcarsten.server;
 
 import org.toastcarsten.errors.ConnectionClosedException;
+import org.toastcarsten.shared.BufferPool;
+import org.toastcarsten.shared.FrameDecoder;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Deque;
 
 public class ChannelIO {
 
-    public static String read(SocketChannel client) throws IOException, ConnectionClosedException {
-        ByteBuffer buf = ByteBuffer.allocate(1024);
-        int numbytes = client.read(buf);
-        switch (numbytes) {
-            case (-1) :
-                throw new ConnectionClosedException("Connection closed unexpectedly");
-            case 0 :
-                return"";
-            default :
-                if (buf.get(numbytes - 1) != (byte)'\n')
-                    throw new IOException("Message Frame error");
-                return new String(buf.array(),"utf-8").trim();
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final BufferPool readBuffers = new BufferPool(READ_BUFFER_SIZE, 64);
+
+    /**
+     * Creates a decoder that keeps the partial frames of one connection between reads.
+     */
+    public static FrameDecoder newDecoder() {
+        return new FrameDecoder(readBuffers);
+    }
+
+    /**
+     * Reads the available bytes of a client into its decoder.
+     * Complete frames can then be taken from the decoder with {@link FrameDecoder#next()}.
+     * @param client the channel to read from
+     * @param decoder the decoder belonging to that channel
+     * @return the number of bytes read
+     */
+    public static int read(ReadableByteChannel client, FrameDecoder decoder) throws IOException, ConnectionClosedException {
+        int numbytes = decoder.read(client);
+        if (numbytes == -1)
+            throw new ConnectionClosedException("Connection closed unexpectedly");
+        return numbytes;
+    }
+
+    /**
+     * Queues a message for a user. The message is written once the channel of the user becomes writable.
+     * @param u the receiving user
+     * @param s the message, a line terminator is appended if missing
+     */
+    public static void write(User u, String s) throws IOException {
+        write(u, Frame.of(s));
+    }
+
+    /**
+     * Queues an already encoded message for a user.
+     * The frame itself is shared, the user only gets its own view of it.
+     * @param u the receiving user
+     * @param frame the encoded message
+     */
+    public static void write(User u, Frame frame) throws IOException {
+        // a user that is behind may not get everything
+        if (!u.admit(frame))
+            return;
+        u.queue(frame.view(u), frame.getKind());
+        // a full batch goes out right away rather than growing until the end of the cycle
+        if (u.getOutbound().size() >= u.getReactor().getWriteBatch() && !u.hasWriteInterest())
+            flush(u);
+    }
+
+    /**
+     * Writes as much of the outbound queue of a user as the socket accepts without blocking.
+     * If something is left, the write interest is registered until the socket takes more.
+     * @param u the user whose queue should be drained
+     * @return true if the queue has been drained completely
+     */
+    public static boolean flush(User u) throws IOException {
+        Reactor r = u.getReactor();
+        u.sealOutbound();
+        int queued = u.getOutbound().size();
+        long written = drain(u.getEndpoint(), u.getOutbound(), r.getGatherBuffers());
+        u.dequeued(queued - u.getOutbound().size(), written);
+        r.getMetrics().recordDequeued(written, true);
+        r.getMetrics().recordFlush();
+        if (!u.getOutbound().isEmpty()) {
+            // socket buffer is full, continue when the poller reports the endpoint writable
+            u.setWriteInterest(true);
+            return false;
         }
+        u.setWriteInterest(false);
+        return true;
     }
 
-    public static void write(SocketChannel client, String s) throws IOException {
-        if (!s.endsWith("\n"))
-            s += "\n";
-        client.write(ByteBuffer.wrap(s.getBytes("UTF-8")));
+    /**
+     * Writes queued buffers to a channel until the queue is empty or the channel does not take more.
+     * Up to gather.length buffers are handed to the channel at once, so many small messages cost a single system call.
+     * @param client the channel to write to
+     * @param outbound the queued buffers, fully written ones are removed
+     * @param gather scratch array, its length is the maximum number of buffers per write
+     * @return the number of bytes written
+     */
+    public static long drain(GatheringByteChannel client, Deque<ByteBuffer> outbound, ByteBuffer[] gather) throws IOException {
+        long written = 0;
+        while (!outbound.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer buf : outbound) {
+                gather[n++] = buf;
+                if (n == gather.length)
+                    break;
+            }
+            written += n == 1 ? client.write(gather[0]) : client.write(gather, 0, n);
+            // don't keep the buffers reachable after they have been written
+            Arrays.fill(gather, 0, n, null);
+            int done = 0;
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null && !buf.hasRemaining()) {
+                outbound.poll();
+                ++done;
+            }
+            if (done < n) {
+                // the channel did not take the whole batch
+                break;
+            }
+        }
+        return written;
     }
 }
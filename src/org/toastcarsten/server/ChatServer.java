@@ -2,24 +2,54 @@ package org.toastcarsten.server;
 
 import org.toastcarsten.errors.CommandNotFoundException;
 import org.toastcarsten.errors.ConnectionClosedException;
+import org.toastcarsten.errors.FrameTooLongException;
+import org.toastcarsten.shared.BinaryCodec;
+import org.toastcarsten.shared.Compression;
+import org.toastcarsten.shared.FrameDecoder;
 import org.toastcarsten.shared.Protocol;
 import org.toastcarsten.shared.IServer;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.naming.NameAlreadyBoundException;
+import java.lang.management.ManagementFactory;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.*;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer implements IServer {
 
-    private Selector events;
-    private ServerSocketChannel listener;
+    private Transport transport;
+    private Clock clock;
+    private Transport.Listener listener;
     private Protocol protocol;
+    private Reactor acceptor;
+    private Reactor[] workers;
+    private int nextWorker = 0;
+    private ServerConfig config;
+    private ServerStats stats;
+    private History history;
+    private Cluster cluster;
+    private AddressLimit addressLimit;
+    private Presence presence;
+    // accepted connections that have not been registered by their reactor yet
+    private final AtomicInteger admitting = new AtomicInteger();
+    // set while accepting is off because too many connections wait for admission
+    private volatile boolean acceptPaused = false;
 
     public static void main(String[] args) {
         try {
-            ChatServer srv = new ChatServer(47711);
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            if ("blocking".equals(config.mode)) {
+                if (config.cluster != null)
+                    System.err.println("The blocking server cannot be part of a cluster, serving on its own.");
+                BlockingServer srv = new BlockingServer(config.port, config);
+                System.out.println("Serving connections with " + (srv.isVirtual() ? "virtual" : "platform") + " threads.");
+                srv.run();
+                return;
+            }
+            ChatServer srv = new ChatServer(config.port, config);
             srv.run();
         } catch (IOException e) {
             e.printStackTrace();
@@ -27,74 +57,221 @@ public class ChatServer implements IServer {
     }
 
     public ChatServer(int port) throws IOException {
-        events = Selector.open();
-        listener = ServerSocketChannel.open();
-        listener.configureBlocking(false);
-        listener.socket().bind(new InetSocketAddress(port));
-        listener.register(events, SelectionKey.OP_ACCEPT);
+        this(port, new ServerConfig());
+    }
+
+    public ChatServer(int port, ServerConfig config) throws IOException {
+        this(port, config, new SocketTransport(), Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a server on the given transport, e.g. a {@link LoopbackTransport} with a {@link SimulatedClock}
+     * to drive it with {@link #step()} instead of {@link #run()}.
+     * @param port port to listen on, 0 for any
+     * @param config the tunables
+     * @param transport where connections come from
+     * @param clock what timeouts and rate limits are measured with
+     */
+    public ChatServer(int port, ServerConfig config, Transport transport, Clock clock) throws IOException {
+        this.config = config;
+        this.transport = transport;
+        this.clock = clock;
         protocol = new Protocol(this);
+        history = new History(config);
+        Room.setRemovalListener(history::forget);
+        addressLimit = new AddressLimit(config.maxConnectionsPerIp);
+        presence = new Presence(config.presenceWindowMillis, clock, this::broadcast);
+        acceptor = new Reactor(this);
+        workers = new Reactor[config.workers];
+        Reactor[] all = new Reactor[workers.length + 1];
+        all[0] = acceptor;
+        for (int i = 0; i < workers.length; ++i)
+            all[i + 1] = workers[i] = new Reactor(this);
+        stats = new ServerStats(all);
+        // the reactors serving users split the outbound budget
+        for (int i = workers.length == 0 ? 0 : 1; i < all.length; ++i)
+            all[i].setOutboundBudget(config.outboundBudget / Math.max(1, workers.length));
+        listener = transport.listen(port, config.acceptBacklog, acceptor.getPoller());
+        if (config.nodeId > 0 && config.cluster != null) {
+            // relayed messages wait in the mailboxes until the reactors run
+            cluster = new Cluster(this, config.nodeId, config.cluster);
+            cluster.start();
+        }
+        try {
+            ObjectName name = new ObjectName("org.toastcarsten:type=ChatServer,port=" + listener.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+            System.err.println("Error registering the statistics MBean.");
+        }
     }
 
+    /**
+     * Starts the worker reactors, then accepts connections on the calling thread.
+     * Without workers, the calling thread serves all connections as well.
+     */
     public void run() {
-        while (true) {
-            try {
-                //wait for events
-                events.select();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.err.println("Error occured when waiting for events.");
-            }
-            //process all events that occured
-            Iterator<SelectionKey> itr = events.selectedKeys().iterator();
-            while (itr.hasNext()) {
-                SelectionKey event = itr.next();
-                itr.remove();
-                if (event.isReadable()) {
-                    //someone sent a message
-                    try {
-                        this.processRead(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        System.err.println("Error receiving a message.");
-                    } catch (ConnectionClosedException e) {
-                        User.remove(User.get(event));
-                    }
-                } else if (event.isAcceptable()) {
-                    //someone tries to connect
-                    try {
-                        this.processAccept();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        System.err.println("Error registering a client.");
-                    }
-                }
-            }
+        for (int i = 0; i < workers.length; ++i) {
+            Thread t = new Thread(workers[i], "toastcarsten-worker-" + i);
+            t.start();
         }
+        presence.start();
+        acceptor.run();
+    }
+
+    /**
+     * Announces the joins and leaves whose window has passed, then runs one cycle of every reactor
+     * on the calling thread, without waiting for events.
+     * Meant for simulations on a {@link LoopbackTransport}: a test alternates between its clients and this,
+     * and with a {@link SimulatedClock} every run processes the same events in the same order.
+     * Must not be mixed with {@link #run()}, and the server must not be part of a cluster.
+     */
+    public void step() {
+        presence.announceDue();
+        acceptor.runOnce();
+        for (Reactor w : workers)
+            w.runOnce();
+    }
+
+    /**
+     * @return the port connections are accepted on
+     */
+    public int getPort() {
+        return listener.getLocalPort();
     }
 
-    private void processRead(SelectionKey client) throws IOException, ConnectionClosedException {
+    /**
+     * @return the statistics also exposed as MBean
+     */
+    public ServerStatsMBean getStats() {
+        return stats;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    AddressLimit getAddressLimit() {
+        return addressLimit;
+    }
+
+    void processRead(Endpoint client) throws IOException, ConnectionClosedException {
         User u = User.get(client);
+        Metrics metrics = u.getReactor().getMetrics();
         u.resetTimeout();
-        SocketChannel clientChannel = u.getChannel();
-        String[] messages = ChannelIO.read((SocketChannel)client.channel()).split("\n");
-        for (String message : messages) {
+        FrameDecoder decoder = u.getDecoder();
+        int n;
+        boolean tooLong = false;
+        try {
+            n = ChannelIO.read(client, decoder);
+        } catch (FrameTooLongException e) {
+            // the line is dropped up to its newline, the connection goes on
+            n = e.getBytesRead();
+            tooLong = true;
+        }
+        metrics.recordRead(n);
+        RateLimiter commands = u.getCommandLimiter();
+        RateLimiter bytes = u.getByteLimiter();
+        long now = clock.nanos();
+        // a user that has been quiet long enough to refill its budget gets told again next time
+        if (u.isRateLimited() && (commands == null || commands.isFull(now)) && (bytes == null || bytes.isFull(now)))
+            u.setRateLimited(false);
+        // accounted after the fact, a read beyond the budget leaves the bucket in debt
+        if (bytes != null)
+            bytes.take(n, now);
+        if (!u.isNegotiated() && u.getCompressor() == null && config.compressionLevel > 0 && decoder.skipIf(Compression.HELLO)) {
+            // confirmed uncompressed, everything after it is compressed
+            u.queue(ByteBuffer.wrap(new byte[] { Compression.HELLO }));
+            u.setCompressor(new Compression.Encoder(config.compressionLevel, config.compressionThreshold));
+        }
+        if (!u.isNegotiated() && decoder.pending() > 0) {
+            // binary clients announce themselves with their first byte, everyone else speaks text
+            if (decoder.skipIf(BinaryCodec.HELLO)) {
+                decoder.setBinary(true);
+                u.queue(ByteBuffer.wrap(new byte[] { BinaryCodec.HELLO }));
+            }
+            u.setNegotiated();
+        }
+        if (tooLong)
+            ChannelIO.write(u, FrameEncoder.error(Protocol.Error.LineTooLong));
+        processFrames(u);
+    }
+
+    /**
+     * Executes the complete frames received from a user, as far as its rate limits allow.
+     * A user over its limits is throttled: its reactor stops reading from it and calls this again once the budget has refilled.
+     * The limits are checked before parsing, so a flood costs no more than counting.
+     * @param u the user
+     */
+    void processFrames(User u) throws IOException {
+        Metrics metrics = u.getReactor().getMetrics();
+        FrameDecoder decoder = u.getDecoder();
+        RateLimiter commands = u.getCommandLimiter();
+        RateLimiter bytes = u.getByteLimiter();
+        // the rest waits until the owner of the name has answered
+        if (u.isLoginPending())
+            return;
+        // a read may end in the middle of a frame, the decoder keeps the rest for the next read
+        while (true) {
+            // a command (e.g. /logout) may have removed the user, whatever it sent after that is not executed
+            if (!u.isAttached())
+                return;
+            long now = clock.nanos();
+            if (commands != null && decoder.pending() > 0 && !commands.isAvailable(now)) {
+                throttle(u, now + commands.nanosUntilAvailable(now));
+                return;
+            }
+            if (!decoder.next())
+                break;
+            if (commands != null)
+                commands.take(1, now);
             Protocol.ClientCommand cmd = null;
             // try to parse command, if invalid, send error
             try {
-                cmd = (Protocol.ClientCommand) protocol.parseClient(message);
+                if (decoder.isBinary())
+                    cmd = BinaryCodec.decodeClient(protocol, decoder.array(), decoder.frameOffset(), decoder.frameLength());
+                else
+                    cmd = (Protocol.ClientCommand) protocol.parseClient(decoder.array(), decoder.frameOffset(), decoder.frameLength());
             } catch (CommandNotFoundException e) {
-                Protocol.Error err = Protocol.Error.CommandNotFound;
-                ChannelIO.write(clientChannel, protocol.new ErrorMessage(err).toString());
+                ChannelIO.write(u, FrameEncoder.error(Protocol.Error.CommandNotFound));
                 continue;
             }
-            // Login handled by the server because the SelectionKey needs to be present
+            long start = System.nanoTime();
+            // Login handled by the server because the User needs to be present
             if (cmd instanceof Protocol.Login) {
                 String name = cmd.args;
+                if (cluster != null && !cluster.isOwner(name)) {
+                    // another node decides, stop reading until it has
+                    u.setLoginPending(true);
+                    u.setReadPaused(true);
+                    cluster.claim(name, granted -> u.getReactor().execute(() -> claimed(u, name, granted)));
+                    metrics.recordCommand(Metrics.CommandType.of(cmd), System.nanoTime() - start);
+                    return;
+                }
                 try {
-                    u.setName(name);
+                    if (cluster != null && !cluster.reserve(name))
+                        throw new NameAlreadyBoundException("The given username is taken!");
+                    String old = u.getName();
+                    try {
+                        u.setName(name);
+                    } finally {
+                        if (cluster != null)
+                            cluster.unreserve(name);
+                    }
+                    announceLogin(old, name);
+                    // a rename has seen the history already
+                    if (old == null)
+                        replay(u, null);
                 } catch (NameAlreadyBoundException e) {
-                    Protocol.Error err = Protocol.Error.NameAlreadyInUse;
-                    ChannelIO.write(clientChannel, protocol.new ErrorMessage(err).toString());
+                    ChannelIO.write(u, FrameEncoder.error(Protocol.Error.NameAlreadyInUse));
                 }
             }
             // for any other message, do what is defined in the Protocol
@@ -102,34 +279,374 @@ public class ChatServer implements IServer {
                 String username = u.getName();
                 if (username == null) {
                     // user still in lobby, should only be able to login
-                    Protocol.Error err = Protocol.Error.CommandNotAllowed;
-                    ChannelIO.write(clientChannel, protocol.new ErrorMessage(err).toString());
-                    return;
+                    ChannelIO.write(u, FrameEncoder.error(Protocol.Error.CommandNotAllowed));
+                    continue;
                 }
                 cmd.action(username);
             }
+            metrics.recordCommand(Metrics.CommandType.of(cmd), System.nanoTime() - start);
+        }
+        long now = clock.nanos();
+        if (bytes != null && !bytes.isAvailable(now))
+            throttle(u, now + bytes.nanosUntilAvailable(now));
+    }
+
+    /**
+     * Finishes a login once the owner of the name has answered, then goes on with what the user sent meanwhile.
+     * Runs on the thread of the reactor of the user.
+     * @param u the user
+     * @param name the name the user asked for
+     * @param granted true if the owner gave the name to the user
+     */
+    private void claimed(User u, String name, boolean granted) {
+        u.setLoginPending(false);
+        if (!u.isAttached()) {
+            if (granted)
+                cluster.release(name);
+            return;
+        }
+        try {
+            try {
+                if (!granted)
+                    throw new NameAlreadyBoundException("The given username is taken!");
+                String old = u.getName();
+                u.setName(name);
+                announceLogin(old, name);
+                if (old == null)
+                    replay(u, null);
+            } catch (NameAlreadyBoundException e) {
+                if (granted)
+                    cluster.release(name);
+                ChannelIO.write(u, FrameEncoder.error(Protocol.Error.NameAlreadyInUse));
+            }
+            u.setReadPaused(false);
+            processFrames(u);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error receiving a message.");
+            User.remove(u);
+        }
+    }
+
+    /**
+     * Stops reading from a user that sends too fast. The user is told once, not every time the budget runs out again.
+     * @param u the user
+     * @param resumeAt time to read again, see {@link Clock#nanos()}
+     */
+    private void throttle(User u, long resumeAt) throws IOException {
+        u.getReactor().throttle(u, resumeAt);
+        if (!u.isRateLimited()) {
+            u.setRateLimited(true);
+            ChannelIO.write(u, FrameEncoder.error(Protocol.Error.RateLimited));
+        }
+    }
+
+    /**
+     * Accepts a batch of connections and queues each for the least loaded reactor, which registers it in one of its next cycles.
+     * Whatever exceeds the batch stays in the backlog of the listener, as does everything while too many connections are queued.
+     * Connections from addresses that already have the maximum number of connections are closed right away.
+     * @param r the accepting reactor
+     */
+    void processAccept(Reactor r) throws IOException {
+        for (int i = 0; i < config.acceptBatch; ++i) {
+            if (admitting.get() >= config.admissionQueue) {
+                pauseAccept();
+                return;
+            }
+            Endpoint talkChannel = listener.accept();
+            if (talkChannel == null)
+                return;
+            if (!addressLimit.acquire(talkChannel.getAddress())) {
+                r.getMetrics().recordRefused();
+                try {
+                    talkChannel.close();
+                } catch (IOException e) {}
+                continue;
+            }
+            admitting.incrementAndGet();
+            Reactor target = r;
+            if (workers.length > 0) {
+                // the worker with the fewest users, round robin among equals
+                target = workers[nextWorker];
+                for (int j = 1; j < workers.length; ++j) {
+                    Reactor w = workers[(nextWorker + j) % workers.length];
+                    if (w.getLoad() < target.getLoad())
+                        target = w;
+                }
+                nextWorker = (nextWorker + 1) % workers.length;
+            }
+            Reactor worker = target;
+            worker.execute(() -> worker.admit(talkChannel));
         }
     }
 
-    private void processAccept() throws IOException {
-        SocketChannel talkChannel = listener.accept();
-        talkChannel.configureBlocking(false);
-        SelectionKey userkey = talkChannel.register(events, SelectionKey.OP_READ);
-        new User(userkey);
+    /**
+     * Called by a reactor after it has taken over queued connections.
+     * @param count number of connections, registered or refused
+     */
+    void admitted(int count) {
+        if (admitting.addAndGet(-count) <= config.admissionQueue / 2 && acceptPaused)
+            acceptor.execute(this::resumeAccept);
+    }
+
+    /**
+     * Called by a reactor for a queued connection that could not be registered.
+     * @param endpoint the connection
+     */
+    void refused(Endpoint endpoint) {
+        addressLimit.release(endpoint.getAddress());
+        try {
+            endpoint.close();
+        } catch (IOException e) {}
+    }
+
+    private void pauseAccept() {
+        listener.setAcceptInterest(false);
+        acceptPaused = true;
+        // the reactors may have caught up before they could see the flag
+        if (admitting.get() <= config.admissionQueue / 2)
+            resumeAccept();
+    }
+
+    private void resumeAccept() {
+        if (!acceptPaused)
+            return;
+        acceptPaused = false;
+        listener.setAcceptInterest(true);
+    }
+
+    /**
+     * Called by the TimeoutService for every user that has been inactive for too long.
+     * @param u the inactive user
+     */
+    void expire(User u) {
+        String name = u.getName();
+        if (name == null)
+            u.getReactor().getMetrics().recordLobbyTimeout();
+        try {
+            ChannelIO.write(u, FrameEncoder.userTimeout());
+            User.remove(u);
+            if (name != null)
+                presence.left(name, Protocol.Reason.timeout);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Disconnects a user that does not read its messages fast enough.
+     * @param u the user, whose outbound queue is over its limits
+     */
+    void evict(User u) {
+        if (!u.isAttached())
+            return;
+        String name = u.getName();
+        u.getReactor().getMetrics().recordEviction();
+        // bypasses the policy, which refuses anything for an evicted user
+        u.queue(FrameEncoder.error(Protocol.Error.SlowConsumer).view(u));
+        User.remove(u);
+        if (name != null)
+            presence.left(name, Protocol.Reason.evicted);
     }
 
     @Override
     public void send(String username, String message) throws IOException {
-        SocketChannel sc = User.get(username).getChannel();
-        ChannelIO.write(sc, message);
+        User u = User.get(username);
+        Frame frame = Frame.reply(message);
+        u.getReactor().execute(() -> {
+            try {
+                ChannelIO.write(u, frame);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void sendError(String username, Protocol.Error error) {
+        User u = User.get(username);
+        u.getReactor().execute(() -> {
+            try {
+                ChannelIO.write(u, FrameEncoder.error(error));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void sendUserlist(String username, long since) throws IOException {
+        User u = User.get(username);
+        // the pages are shared by every request until the next login or logout
+        List<Frame> frames = User.getUserlist().answer(since);
+        u.getReactor().execute(() -> {
+            try {
+                for (Frame f : frames)
+                    ChannelIO.write(u, f);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
     }
 
     @Override
     public void multicast(String sender, String text) throws IOException {
-        for (User user : User.getParticipants()) {
-            if (!user.getName().equals(sender))
-                ChannelIO.write(user.getChannel(), text);
+        deliver(sender, text, false);
+        if (cluster != null)
+            cluster.multicast(sender, text, false);
+    }
+
+    /**
+     * Sends a message to all users of this node except the sender, other nodes are left to the caller.
+     * @param sender name of the sender
+     * @param text message to send
+     * @param chat whether the message is a chat line, which is kept in the history of this node as well
+     */
+    void deliver(String sender, String text, boolean chat) {
+        // encode once, every recipient and the history only get a view of the same bytes
+        Frame frame = Frame.of(text);
+        deliver(sender, frame);
+        if (chat)
+            history.append(null, frame);
+    }
+
+    private void deliver(String sender, Frame frame) {
+        // each reactor fans out to its own users
+        if (workers.length == 0) {
+            acceptor.execute(() -> acceptor.fanout(sender, frame));
+            return;
         }
+        for (Reactor w : workers)
+            w.execute(() -> w.fanout(sender, frame));
+    }
+
+    @Override
+    public void roomcast(String room, String sender, String text) throws IOException {
+        deliverToRoom(room, sender, text, false);
+        if (cluster != null)
+            cluster.roomcast(room, sender, text, false);
+    }
+
+    /**
+     * Sends a message to the members of a room on this node except the sender, other nodes are left to the caller.
+     * @param room name of the room
+     * @param sender name of the sender
+     * @param text message to send
+     * @param chat whether the message is a chat line, which is kept in the history of this node as well
+     */
+    void deliverToRoom(String room, String sender, String text, boolean chat) {
+        Frame frame = Frame.of(text);
+        deliverToRoom(room, sender, frame);
+        if (chat)
+            history.append(room, frame);
+    }
+
+    private void deliverToRoom(String room, String sender, Frame frame) {
+        Room r = Room.get(room);
+        if (r == null)
+            return;
+        User[] members = r.getMembers();
+        // only the members are visited, so the cost depends on the size of the room, not of the server
+        if (workers.length == 0) {
+            acceptor.execute(() -> acceptor.fanout(sender, frame, members));
+            return;
+        }
+        for (Reactor w : workers)
+            w.execute(() -> w.fanout(sender, frame, members));
+    }
+
+    @Override
+    public void chat(String room, String sender, String line) throws IOException {
+        // encoded once for the fan-out and the history
+        Frame frame = Frame.of(line);
+        if (room == null)
+            deliver(sender, frame);
+        else
+            deliverToRoom(room, sender, frame);
+        history.append(room, frame);
+        if (cluster != null) {
+            if (room == null)
+                cluster.multicast(sender, line, true);
+            else
+                cluster.roomcast(room, sender, line, true);
+        }
+    }
+
+    /**
+     * Tells the users of this node that users of another node are gone because their node is no longer reachable.
+     * The other nodes have lost it as well and tell their own users.
+     * @param names names of the users
+     */
+    void remoteLeft(List<String> names) {
+        for (List<String> group : Presence.split(names))
+            deliver("", FrameEncoder.userLeft(group, Protocol.Reason.timeout));
+    }
+
+    @Override
+    public void left(String user, Protocol.Reason reason) {
+        presence.left(user, reason);
+    }
+
+    /**
+     * Announces a successful login, a user that had another name before is gone under that name.
+     * @param old the previous name of the user, or null
+     * @param name the new name
+     */
+    private void announceLogin(String old, String name) {
+        if (name.equals(old))
+            return;
+        if (old != null)
+            presence.left(old, Protocol.Reason.logout);
+        presence.joined(name);
+    }
+
+    /**
+     * Sends the recent history of a conversation to a user who just entered it.
+     * @param u the user
+     * @param room name of the room, or null for the conversation of everyone
+     */
+    private void replay(User u, String room) {
+        List<Frame> lines = history.recent(room, config.historyReplay);
+        if (lines.isEmpty())
+            return;
+        u.getReactor().execute(() -> {
+            try {
+                for (Frame f : lines)
+                    ChannelIO.write(u, f);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void join(String user, String room) throws IOException {
+        User u = User.get(user);
+        Room.join(room, u);
+        u.addRoom(room);
+        roomcast(room, "", protocol.new RoomJoined(room, user).toString());
+        replay(u, room);
+    }
+
+    @Override
+    public void part(String user, String room) throws IOException {
+        User u = User.get(user);
+        if (room.isEmpty())
+            room = u.getActiveRoom() == null ? "" : u.getActiveRoom();
+        if (!u.removeRoom(room)) {
+            sendError(user, Protocol.Error.CommandNotAllowed);
+            return;
+        }
+        Room.part(room, u);
+        String parted = protocol.new RoomParted(room, user).toString();
+        send(user, parted);
+        roomcast(room, user, parted);
+    }
+
+    @Override
+    public String getRoom(String user) {
+        User u = User.get(user);
+        return u == null ? null : u.getActiveRoom();
     }
 
     @Override
@@ -137,9 +654,29 @@ public class ChatServer implements IServer {
         multicast("", text);
     }
 
+    /**
+     * Sends a line the server encoded itself to everyone.
+     * @param frame the line
+     */
+    private void broadcast(Frame frame) {
+        deliver("", frame);
+        if (cluster != null)
+            cluster.multicast("", frame.line(), false);
+    }
+
+    @Override
+    public boolean isAdmin(String user) {
+        return config.admins.contains(user);
+    }
+
+    @Override
+    public String stats() {
+        return cluster == null ? stats.getSummary() : stats.getSummary() + " " + cluster.getSummary();
+    }
+
     @Override
     public void logout(String name){
         User u = User.get(name);
-        User.remove(u);
+        u.getReactor().execute(() -> User.remove(u));
     }
 }
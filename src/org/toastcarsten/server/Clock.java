@@ -0,0 +1,33 @@
+package org.toastcarsten.server;
+
+/**
+ * The time as seen by the reactors: timeouts, login deadlines and rate limits are measured with it.
+ * Measurements for the statistics (loop times, command latencies) always use {@link System#nanoTime()}.
+ */
+public interface Clock {
+
+    /**
+     * The wall clock of the machine.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return current time in milliseconds, see {@link System#currentTimeMillis()}
+     */
+    long millis();
+
+    /**
+     * @return current time in nanoseconds, only meaningful as a difference, see {@link System#nanoTime()}
+     */
+    long nanos();
+}
@@ -0,0 +1,547 @@
+package org.toastcarsten.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Connects ChatServers on several machines (or ports) to one chat.
+ * Every node opens a link to every other node and sends everything the others need to know over it:
+ * chat lines and presence are relayed once per node, the receiving node fans them out to its own users.
+ *
+ * Names are unique across the cluster. Every name has an owner node, chosen by rendezvous hashing among the reachable nodes,
+ * which decides who gets it. Users of other nodes are known to every node as stand-in {@link User}s, so lookups and
+ * the userlist work as before. While nodes come and go, two nodes may briefly disagree on the owner of a name.
+ *
+ * A message on a link is a type byte followed by strings, each an int length and UTF-8 bytes.
+ * Every link is written by a thread of its own, which sends everything queued in one batch.
+ */
+public class Cluster implements User.NameListener {
+
+    private static final byte HELLO = 1, CLAIM = 2, CLAIMED = 3, RELEASE = 4, ONLINE = 5, OFFLINE = 6,
+            MULTICAST = 7, ROOMCAST = 8;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_STRING = 1024 * 1024;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final ChatServer server;
+    private final int self;
+    // milliseconds a claim waits for its answer, as long as a connection may wait for its login
+    private final long claimTimeoutMillis;
+    private final InetSocketAddress address;
+    private final TreeMap<Integer, Peer> peers = new TreeMap<>();
+    // names this node granted to another one, until that node announces the user
+    private final ConcurrentHashMap<String, Integer> claims = new ConcurrentHashMap<>();
+    // claims waiting for the answer of the owner, by request id
+    private final ConcurrentHashMap<Long, Claim> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    // the reader of the current incoming link of every node
+    private final ConcurrentHashMap<Integer, Socket> inbound = new ConcurrentHashMap<>();
+    // messages that did not fit into the queue of a link
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static class Message {
+        final byte type;
+        final String[] fields;
+
+        Message(byte type, String... fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    private static class Claim {
+        final String name;
+        final Consumer<Boolean> done;
+        final int owner;
+        // time the claim is refused if the owner has not answered, see System.currentTimeMillis()
+        final long deadline;
+
+        Claim(String name, Consumer<Boolean> done, int owner, long deadline) {
+            this.name = name;
+            this.done = done;
+            this.owner = owner;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param server the local server, it delivers relayed messages to its users
+     * @param self id of this node
+     * @param members all nodes as id@host:port, see {@link ServerConfig#cluster}
+     */
+    public Cluster(ChatServer server, int self, String members) {
+        this.server = server;
+        this.self = self;
+        this.claimTimeoutMillis = server.getConfig().loginTimeoutMillis;
+        InetSocketAddress own = null;
+        for (String member : members.split(",")) {
+            member = member.trim();
+            if (member.isEmpty())
+                continue;
+            int at = member.indexOf('@');
+            int colon = member.lastIndexOf(':');
+            if (at < 0 || colon < at)
+                throw new IllegalArgumentException("Cluster member is not id@host:port: " + member);
+            int id = Integer.parseInt(member.substring(0, at));
+            InetSocketAddress a = new InetSocketAddress(member.substring(at + 1, colon), Integer.parseInt(member.substring(colon + 1)));
+            if (id == self)
+                own = a;
+            else
+                peers.put(id, new Peer(id, a));
+        }
+        if (own == null)
+            throw new IllegalArgumentException("Node " + self + " is not a member of the cluster " + members);
+        address = own;
+    }
+
+    /**
+     * Listens for the other nodes and starts connecting to them.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(address.getPort()));
+        User.setNameListener(this);
+        Thread t = new Thread(() -> accept(listener), "toastcarsten-cluster");
+        t.setDaemon(true);
+        t.start();
+        for (Peer p : peers.values()) {
+            Thread w = new Thread(p, "toastcarsten-cluster-" + p.id);
+            w.setDaemon(true);
+            w.start();
+        }
+        Thread e = new Thread(this::expireClaims, "toastcarsten-cluster-claims");
+        e.setDaemon(true);
+        e.start();
+    }
+
+    public int getNodeId() {
+        return self;
+    }
+
+    /**
+     * @return a one-line summary of the links, for the statistics
+     */
+    public String getSummary() {
+        int up = 0;
+        for (Peer p : peers.values()) {
+            if (p.up)
+                ++up;
+        }
+        return "node=" + self + " peers_up=" + up + "/" + peers.size() + " relay_dropped=" + dropped.get();
+    }
+
+    // --------------- names ---------------
+
+    /**
+     * @param name a user name
+     * @return id of the node deciding who gets the name: the reachable node scoring highest for it
+     */
+    int owner(String name) {
+        int best = self;
+        int bestScore = score(name, self);
+        for (Peer p : peers.values()) {
+            if (!p.up)
+                continue;
+            int s = score(name, p.id);
+            if (s > bestScore || (s == bestScore && p.id > best)) {
+                best = p.id;
+                bestScore = s;
+            }
+        }
+        return best;
+    }
+
+    private static int score(String name, int node) {
+        // murmur3 finalizer, so similar names spread over all nodes
+        int h = name.hashCode() * 31 + node;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @param name a user name
+     * @return true if this node decides who gets the name, then {@link #reserve(String)} can be used instead of a claim
+     */
+    boolean isOwner(String name) {
+        return owner(name) == self;
+    }
+
+    /**
+     * Blocks a name owned by this node for a local login, until {@link #unreserve(String)}.
+     * @param name the name
+     * @return false if another node has been granted the name and not announced its user yet
+     */
+    boolean reserve(String name) {
+        return claims.putIfAbsent(name, self) == null;
+    }
+
+    void unreserve(String name) {
+        claims.remove(name, self);
+    }
+
+    /**
+     * Asks the owner of a name whether a local user may have it. If the owner disappears before it answers, the next owner is asked.
+     * If the link to the owner is only too far behind, the name is refused rather than asking the same owner again.
+     * Without an answer within the login timeout, the name is refused as well.
+     * @param name the name
+     * @param done receives the answer, on a thread of the cluster or the calling thread
+     */
+    void claim(String name, Consumer<Boolean> done) {
+        claim(name, done, System.currentTimeMillis() + claimTimeoutMillis);
+    }
+
+    /**
+     * @param deadline time the claim is refused if no owner has answered, kept when the claim moves to the next owner
+     */
+    private void claim(String name, Consumer<Boolean> done, long deadline) {
+        int owner = owner(name);
+        // every node is asked at most once, each attempt only fails over to another owner
+        for (int attempt = 0; owner != self && attempt <= peers.size(); ++attempt) {
+            Peer peer = peers.get(owner);
+            long id = requests.incrementAndGet();
+            pending.put(id, new Claim(name, done, owner, deadline));
+            if (peer.send(new Message(CLAIM, Long.toString(id), name)))
+                return;
+            // already answered, or handed to the next owner by a lost link
+            if (pending.remove(id) == null)
+                return;
+            int next = owner(name);
+            if (peer.up || next == owner) {
+                // the link is full, not down
+                done.accept(false);
+                return;
+            }
+            owner = next;
+        }
+        if (owner != self) {
+            done.accept(false);
+            return;
+        }
+        // the claim of the user counts as a reservation until the user takes the name
+        done.accept(grant(name, self));
+    }
+
+    /**
+     * Gives back a name granted by its owner that the local user did not take after all.
+     * @param name the name
+     */
+    void release(String name) {
+        int owner = owner(name);
+        if (owner == self)
+            claims.remove(name, self);
+        else
+            peers.get(owner).send(new Message(RELEASE, name));
+    }
+
+    private boolean grant(String name, int node) {
+        if (claims.putIfAbsent(name, node) != null)
+            return false;
+        // the claim blocks other requests, the name may still be in use already
+        if (User.get(name) != null) {
+            claims.remove(name, node);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void claimed(String name) {
+        // the user holds the name now, the reservation is no longer needed
+        claims.remove(name, self);
+        sendAll(new Message(ONLINE, name));
+    }
+
+    @Override
+    public void released(String name) {
+        sendAll(new Message(OFFLINE, name));
+    }
+
+    // --------------- relay ---------------
+
+    void multicast(String sender, String text, boolean chat) {
+        sendAll(new Message(MULTICAST, chat ? "1" : "0", sender, text));
+    }
+
+    void roomcast(String room, String sender, String text, boolean chat) {
+        sendAll(new Message(ROOMCAST, chat ? "1" : "0", room, sender, text));
+    }
+
+    private void sendAll(Message m) {
+        // the same message object goes to every link, it is only read by the writers
+        for (Peer p : peers.values())
+            p.send(m);
+    }
+
+    // --------------- incoming links ---------------
+
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket s = listener.accept();
+                Thread t = new Thread(() -> serve(s), "toastcarsten-cluster-in");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error accepting a cluster node.");
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        int from = -1;
+        try (Socket socket = s) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // the connecting node introduces itself first
+            if (in.readByte() != HELLO)
+                return;
+            int id = Integer.parseInt(read(in, HELLO)[0]);
+            if (!peers.containsKey(id))
+                return;
+            from = id;
+            Socket previous = inbound.put(from, socket);
+            if (previous != null)
+                previous.close();
+            while (true) {
+                byte type = in.readByte();
+                handle(from, type, read(in, type));
+            }
+        } catch (EOFException e) {
+            // the node shut down
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.err.println("Error receiving from cluster node " + from + ".");
+        } finally {
+            // a node that reconnected already has a new reader, its users are still there
+            if (from >= 0 && inbound.remove(from, s))
+                lost(from);
+        }
+    }
+
+    private static String[] read(DataInputStream in, byte type) throws IOException {
+        String[] msg = new String[fieldCount(type)];
+        for (int i = 0; i < msg.length; ++i) {
+            int len = in.readInt();
+            if (len < 0 || len > MAX_STRING)
+                throw new IOException("Malformed cluster message");
+            byte[] b = new byte[len];
+            in.readFully(b);
+            msg[i] = new String(b, StandardCharsets.UTF_8);
+        }
+        return msg;
+    }
+
+    private static int fieldCount(byte type) throws IOException {
+        switch (type) {
+            case HELLO: case RELEASE: case ONLINE: case OFFLINE:
+                return 1;
+            case CLAIM: case CLAIMED:
+                return 2;
+            case MULTICAST:
+                return 3;
+            case ROOMCAST:
+                return 4;
+            default:
+                throw new IOException("Unknown cluster message " + type);
+        }
+    }
+
+    private void handle(int from, byte type, String[] msg) throws IOException {
+        switch (type) {
+            case CLAIM: {
+                boolean granted = grant(msg[1], from);
+                // a node that never hears of the grant never releases it, the name would be blocked until the link breaks
+                if (!peers.get(from).send(new Message(CLAIMED, msg[0], granted ? "1" : "0")) && granted)
+                    claims.remove(msg[1], from);
+                break;
+            }
+            case CLAIMED: {
+                Claim c = pending.remove(Long.parseLong(msg[0]));
+                if (c != null)
+                    c.done.accept("1".equals(msg[1]));
+                break;
+            }
+            case RELEASE:
+                claims.remove(msg[0], from);
+                break;
+            case ONLINE:
+                claims.remove(msg[0], from);
+                if (!User.addRemote(msg[0], from))
+                    System.err.println("Name " + msg[0] + " is in use on node " + self + " and " + from + ".");
+                break;
+            case OFFLINE:
+                User.removeRemote(msg[0], from);
+                break;
+            case MULTICAST:
+                server.deliver(msg[1], msg[2], "1".equals(msg[0]));
+                break;
+            case ROOMCAST:
+                server.deliverToRoom(msg[1], msg[2], msg[3], "1".equals(msg[0]));
+                break;
+            default:
+                throw new IOException("Unexpected cluster message " + type);
+        }
+    }
+
+    /**
+     * Forgets everything about a node whose link broke: its users, the names granted to it and the claims waiting for it.
+     * @param node id of the node
+     */
+    private void lost(int node) {
+        claims.values().removeIf(n -> n == node);
+        List<String> names = User.removeNode(node);
+        if (!names.isEmpty())
+            server.remoteLeft(names);
+        retryClaims(node);
+    }
+
+    private void retryClaims(int owner) {
+        List<Claim> retry = new ArrayList<>();
+        for (Iterator<Map.Entry<Long, Claim>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Claim c = it.next().getValue();
+            if (c.owner == owner) {
+                it.remove();
+                retry.add(c);
+            }
+        }
+        for (Claim c : retry)
+            claim(c.name, c.done, c.deadline);
+    }
+
+    /**
+     * Refuses the claims whose answer got lost, e.g. because the link of the owner was full. Runs on a thread of its own.
+     */
+    private void expireClaims() {
+        while (true) {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, Claim> entry : pending.entrySet()) {
+                Claim c = entry.getValue();
+                // a claim answered meanwhile is gone already and must not be answered twice
+                if (c.deadline > now || !pending.remove(entry.getKey(), c))
+                    continue;
+                // the owner may still grant it, the release follows the claim on the same link and undoes that
+                Peer owner = peers.get(c.owner);
+                if (owner != null)
+                    owner.send(new Message(RELEASE, c.name));
+                c.done.accept(false);
+            }
+        }
+    }
+
+    // --------------- outgoing links ---------------
+
+    /**
+     * The link to another node. Reconnects until the server stops.
+     */
+    private class Peer implements Runnable {
+        final int id;
+        final InetSocketAddress address;
+        final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        // while false, nothing is queued, the node gets the full state once it is back
+        volatile boolean up = false;
+
+        Peer(int id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        /**
+         * @param m the message
+         * @return false if the node is not reachable or too far behind
+         */
+        synchronized boolean send(Message m) {
+            if (!up)
+                return false;
+            if (!queue.offer(m)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    write(out, new Message(HELLO, Integer.toString(self)));
+                    synchronized (this) {
+                        // nothing queued before the link came up is sent, the node gets the current users instead
+                        queue.clear();
+                        up = true;
+                        for (User u : User.getParticipants()) {
+                            if (!u.isRemote() && u.getName() != null)
+                                queue.offer(new Message(ONLINE, u.getName()));
+                        }
+                    }
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (Message m : batch)
+                            write(out, m);
+                        batch.clear();
+                        // one write for the whole batch
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (up)
+                        System.err.println("Lost the link to cluster node " + id + ".");
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    up = false;
+                    queue.clear();
+                }
+                batch.clear();
+                // names owned by the node are decided by another one now
+                retryClaims(id);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, Message m) throws IOException {
+            out.writeByte(m.type);
+            for (String f : m.fields) {
+                byte[] b = f.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+    }
+}
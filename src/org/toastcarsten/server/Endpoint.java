@@ -0,0 +1,34 @@
+package org.toastcarsten.server;
+
+import java.net.InetAddress;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * One connection of a client as seen by its reactor: a non-blocking channel that is
+ * registered with the {@link Transport.Poller} of the reactor.
+ * Reading and writing never block, they return 0 if there is nothing to read or no room to write.
+ * Closing it also deregisters it.
+ */
+public interface Endpoint extends ReadableByteChannel, GatheringByteChannel, Transport.Pollable {
+
+    /**
+     * @return the address the client connected from
+     */
+    InetAddress getAddress();
+
+    /**
+     * @param on false to stop being reported as readable, unread input then waits in the transport
+     */
+    void setReadInterest(boolean on);
+
+    /**
+     * @param on true to be reported as writable, only wanted while a write was incomplete
+     */
+    void setWriteInterest(boolean on);
+
+    @Override
+    default boolean isAcceptable() {
+        return false;
+    }
+}
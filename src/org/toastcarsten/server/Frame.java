@@ -0,0 +1,193 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.BinaryCodec;
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable, fully encoded message including its line terminator.
+ * A frame is encoded once and can then be queued for any number of users,
+ * each of them getting its own read-only view with an independent position.
+ * The binary encoding is only produced when the first binary client receives the frame.
+ */
+public class Frame {
+
+    /**
+     * What a frame is for, which decides whether it may be shed for a client that does not keep up.
+     */
+    public enum Kind {
+        /** A chat line, may be dropped. */
+        Chat,
+        /** Someone joined or left, may be skipped. */
+        Presence,
+        /** Answers and errors, always delivered. */
+        Control
+    }
+
+    // only used to parse lines for translation, never executes commands
+    private static final Protocol parser = new Protocol((IServer)null);
+
+    // null for frames encoded without a String, decoded from bytes if a binary client needs it
+    private volatile String line;
+    private final Kind kind;
+    private final ByteBuffer bytes;
+    private volatile ByteBuffer binaryBytes;
+
+    private Frame(String line, Kind kind, ByteBuffer bytes) {
+        this.line = line;
+        this.kind = kind;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encodes a message as UTF-8, appending a line terminator if it is missing.
+     * Line breaks within the message would split it for text clients, they are replaced by spaces.
+     * @param s the message
+     * @return the encoded frame
+     */
+    public static Frame of(String s) {
+        return encode(s, null);
+    }
+
+    /**
+     * Encodes the answer to a command of the receiving user, like {@link #of(String)}.
+     * Whatever the text looks like, it is a {@link Kind#Control} frame and never shed.
+     * @param s the message
+     * @return the encoded frame
+     */
+    public static Frame reply(String s) {
+        return encode(s, Kind.Control);
+    }
+
+    // kind null classifies the line by its text
+    private static Frame encode(String s, Kind kind) {
+        int end = s.endsWith("\n") ? s.length() - 1 : s.length();
+        // one pass to size the array and one to fill it, the array is the only allocation
+        byte[] b = new byte[utf8Length(s, end) + 1];
+        int p = 0;
+        for (int i = 0; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = c == '\n' || c == '\r' ? (byte)' ' : (byte)c;
+            } else if (c < 0x800) {
+                b[p++] = (byte)(0xC0 | (c >> 6));
+                b[p++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte)(0xF0 | (cp >> 18));
+                b[p++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte)(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, like String.getBytes
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte)(0xE0 | (c >> 12));
+                b[p++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        b[p] = '\n';
+        String line = end == s.length() ? s : s.substring(0, end);
+        return new Frame(line, kind != null ? kind : kindOf(line), ByteBuffer.wrap(b).asReadOnlyBuffer());
+    }
+
+    private static int utf8Length(String s, int end) {
+        int n = end;
+        for (int i = 0; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    n += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 2;
+                    ++i;
+                } else if (!Character.isSurrogate(c)) {
+                    n += 2;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Wraps a text line that has been encoded already, see {@link FrameEncoder}.
+     * @param text UTF-8 bytes of the line including its line terminator, not modified afterwards
+     * @param kind what the line is for
+     * @return the frame
+     */
+    static Frame encoded(byte[] text, Kind kind) {
+        return new Frame(null, kind, ByteBuffer.wrap(text).asReadOnlyBuffer());
+    }
+
+    /**
+     * Encodes a command that never changes in both wire formats right away.
+     * @param c the command
+     * @return the frame
+     */
+    static Frame constant(Protocol.ServerCommand c) {
+        Frame f = of(c.toString());
+        f.binaryBytes = ByteBuffer.wrap(BinaryCodec.encode(c)).asReadOnlyBuffer();
+        return f;
+    }
+
+    private static Kind kindOf(String line) {
+        // only for relayed lines, answers to the user's own commands are built with reply().
+        // everything that is not a command is a chat line, including room messages ("#room user: text")
+        if (line.isEmpty() || line.charAt(0) != '/')
+            return Kind.Chat;
+        if (line.startsWith("/userjoined ") || line.startsWith("/userleft ") || line.startsWith("/joined ") || line.startsWith("/parted "))
+            return Kind.Presence;
+        return Kind.Control;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @param u the user the view is written to
+     * @return a new read-only view of the whole frame in the wire format of the user, to be consumed by a single writer
+     */
+    public ByteBuffer view(User u) {
+        return view(u.isBinary());
+    }
+
+    /**
+     * @param binary true for the binary encoding, false for the text line
+     * @return a new read-only view of the whole frame in the given wire format, to be consumed by a single writer
+     */
+    public ByteBuffer view(boolean binary) {
+        if (!binary)
+            return bytes.duplicate();
+        ByteBuffer b = binaryBytes;
+        if (b == null) {
+            // racing reactors may both translate, the results are identical
+            b = ByteBuffer.wrap(BinaryCodec.translate(parser, line())).asReadOnlyBuffer();
+            binaryBytes = b;
+        }
+        return b.duplicate();
+    }
+
+    public int length() {
+        return bytes.capacity();
+    }
+
+    /**
+     * @return the text of the frame without line terminator
+     */
+    String line() {
+        String l = line;
+        if (l == null) {
+            ByteBuffer b = bytes.duplicate();
+            byte[] a = new byte[b.remaining() - 1];
+            b.get(a);
+            l = new String(a, StandardCharsets.UTF_8);
+            line = l;
+        }
+        return l;
+    }
+}
@@ -0,0 +1,100 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes the lines the server composes itself straight into the bytes of a {@link Frame},
+ * without building a command object and a String first.
+ *
+ * Lines that never change, every error and the timeout notice, are encoded once when the class is loaded
+ * and shared by every user who gets them, so answering a client that sends nothing but invalid commands costs no allocation.
+ * Variable lines are assembled from pre-encoded pieces, names are ASCII and copied as they are.
+ */
+public class FrameEncoder {
+
+    // only used to build the constant frames
+    private static final Protocol formatter = new Protocol((IServer)null);
+
+    private static final Frame[] errors = new Frame[Protocol.Error.values().length];
+    private static final Frame userTimeout = Frame.constant(formatter.new UserTimeout());
+    private static final byte[] userLeftPrefix = ascii("/userleft ");
+    private static final byte[] userJoinedPrefix = ascii("/userjoined ");
+    private static final byte[] newline = ascii("\n");
+    // " <reason>\n" by ordinal
+    private static final byte[][] reasonSuffixes = new byte[Protocol.Reason.values().length][];
+
+    static {
+        for (Protocol.Error e : Protocol.Error.values())
+            errors[e.ordinal()] = Frame.constant(formatter.new ErrorMessage(e));
+        for (Protocol.Reason r : Protocol.Reason.values())
+            reasonSuffixes[r.ordinal()] = ascii(" " + r.name() + "\n");
+    }
+
+    /**
+     * @param e the error
+     * @return the shared frame of "/error &lt;e&gt;"
+     */
+    public static Frame error(Protocol.Error e) {
+        return errors[e.ordinal()];
+    }
+
+    /**
+     * @return the shared frame of "/usertimeout"
+     */
+    public static Frame userTimeout() {
+        return userTimeout;
+    }
+
+    /**
+     * @param name name of the user who left, letters and digits only
+     * @param reason why
+     * @return a frame of "/userleft &lt;name&gt; &lt;reason&gt;"
+     */
+    public static Frame userLeft(String name, Protocol.Reason reason) {
+        return userLeft(Collections.singletonList(name), reason);
+    }
+
+    /**
+     * @param names names of the users who left, letters and digits only, at least one
+     * @param reason why, the same for all of them
+     * @return a frame of "/userleft &lt;name&gt;,&lt;name&gt;,... &lt;reason&gt;"
+     */
+    public static Frame userLeft(List<String> names, Protocol.Reason reason) {
+        return presence(userLeftPrefix, names, reasonSuffixes[reason.ordinal()]);
+    }
+
+    /**
+     * @param names names of the users who joined, letters and digits only, at least one
+     * @return a frame of "/userjoined &lt;name&gt;,&lt;name&gt;,..."
+     */
+    public static Frame userJoined(List<String> names) {
+        return presence(userJoinedPrefix, names, newline);
+    }
+
+    private static Frame presence(byte[] prefix, List<String> names, byte[] suffix) {
+        int n = prefix.length + names.size() - 1 + suffix.length;
+        for (int i = 0; i < names.size(); ++i)
+            n += names.get(i).length();
+        byte[] b = new byte[n];
+        System.arraycopy(prefix, 0, b, 0, prefix.length);
+        int p = prefix.length;
+        for (int i = 0; i < names.size(); ++i) {
+            if (i > 0)
+                b[p++] = ',';
+            String name = names.get(i);
+            for (int j = 0; j < name.length(); ++j)
+                b[p++] = (byte)name.charAt(j);
+        }
+        System.arraycopy(suffix, 0, b, p, suffix.length);
+        return Frame.encoded(b, Frame.Kind.Presence);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
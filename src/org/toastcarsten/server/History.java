@@ -0,0 +1,137 @@
+package org.toastcarsten.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most recent chat lines of every conversation, so users who log in or join a room late can catch up.
+ * Every conversation keeps a bounded ring of encoded frames in memory. The rings of rooms are dropped with their room,
+ * and at most historyRooms of them are kept, the least recently used beyond that are forgotten.
+ * If a directory is configured, lines are also appended to a {@link HistoryLog}, from which the rings are restored on restart.
+ */
+public class History {
+
+    // key of the conversation of everyone, room names cannot be empty
+    private static final String GLOBAL = "";
+
+    private final int capacity;
+    private final int maxRooms;
+    private final Ring global;
+    // rings of the rooms in access order, guarded by itself
+    private final LinkedHashMap<String, Ring> rings;
+    private final HistoryLog log;
+
+    /**
+     * Creates the history described by the config, restoring persisted lines before returning.
+     * @param config capacity of the rings and location of the log
+     */
+    public History(ServerConfig config) throws IOException {
+        this.capacity = config.historyLines;
+        this.maxRooms = config.historyRooms;
+        this.global = new Ring(Math.max(1, capacity));
+        this.rings = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+                return size() > maxRooms;
+            }
+        };
+        if (config.historyDir == null || capacity == 0) {
+            log = null;
+            return;
+        }
+        log = new HistoryLog(Paths.get(config.historyDir), config.historySegmentBytes, config.historySegments);
+        // runs before the server starts serving, so no reactor waits for the disk
+        log.recover((key, line) -> remember(key, Frame.of(line)));
+        log.start();
+    }
+
+    /**
+     * Remembers a chat line and hands it to the log. Never waits for the disk.
+     * @param room name of the room, or null for the conversation of everyone
+     * @param frame the line as it was sent to the other users
+     */
+    public void append(String room, Frame frame) {
+        if (capacity == 0)
+            return;
+        String key = room == null ? GLOBAL : room;
+        remember(key, frame);
+        if (log != null)
+            log.append(key, frame.line());
+    }
+
+    /**
+     * Drops the lines of a room that has been removed, see {@link Room#setRemovalListener}.
+     * The log keeps them until its segments are reused.
+     * @param room name of the room
+     */
+    public void forget(String room) {
+        synchronized (rings) {
+            rings.remove(room);
+        }
+    }
+
+    /**
+     * @param room name of the room, or null for the conversation of everyone
+     * @param n maximum number of lines
+     * @return the last n lines of the conversation, oldest first
+     */
+    public List<Frame> recent(String room, int n) {
+        if (capacity == 0 || n <= 0)
+            return Collections.emptyList();
+        Ring r;
+        if (room == null) {
+            r = global;
+        } else {
+            synchronized (rings) {
+                r = rings.get(room);
+            }
+        }
+        if (r == null)
+            return Collections.emptyList();
+        return r.last(n);
+    }
+
+    private void remember(String key, Frame frame) {
+        Ring r;
+        if (key.equals(GLOBAL)) {
+            r = global;
+        } else {
+            if (maxRooms <= 0)
+                return;
+            synchronized (rings) {
+                r = rings.computeIfAbsent(key, k -> new Ring(capacity));
+            }
+        }
+        r.add(frame);
+    }
+
+    /**
+     * Fixed size buffer overwriting its oldest entry. Appended to by several reactors, hence synchronized.
+     */
+    private static class Ring {
+        private final Frame[] frames;
+        // total number of frames ever added, the next one goes to count % length
+        private long count = 0;
+
+        Ring(int capacity) {
+            frames = new Frame[capacity];
+        }
+
+        synchronized void add(Frame f) {
+            frames[(int)(count++ % frames.length)] = f;
+        }
+
+        synchronized List<Frame> last(int n) {
+            int k = (int)Math.min(n, Math.min(count, frames.length));
+            List<Frame> list = new ArrayList<>(k);
+            for (long i = count - k; i < count; ++i)
+                list.add(frames[(int)(i % frames.length)]);
+            return list;
+        }
+    }
+}
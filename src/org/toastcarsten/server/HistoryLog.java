@@ -0,0 +1,208 @@
+package org.toastcarsten.server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of chat lines, split into memory-mapped segment files of a fixed size.
+ * Reactors only put lines into a queue, a background thread writes them and forces the segment
+ * to disk once per batch (group commit), so a burst of messages costs a single flush.
+ *
+ * A record is the length of its payload, the CRC32 of the payload, and the payload itself:
+ * the byte count of the conversation as a short, the conversation and the line, both UTF-8.
+ * A length of 0, which is what a fresh segment is filled with, marks the end of the data.
+ * The oldest segments are deleted once there are more than the configured number.
+ */
+public class HistoryLog {
+
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // segment files by index, oldest first
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    // only used by the writer thread once started
+    private MappedByteBuffer current;
+    private long currentIndex = 0;
+    private final CRC32 crc = new CRC32();
+    // lines that did not fit into the queue, they are still in memory but not persisted
+    private final AtomicLong dropped = new AtomicLong();
+
+    private static class Entry {
+        final String conversation;
+        final String line;
+
+        Entry(String conversation, String line) {
+            this.conversation = conversation;
+            this.line = line;
+        }
+    }
+
+    /**
+     * @param dir directory holding the segments, created if it does not exist
+     * @param segmentBytes size of every segment file
+     * @param maxSegments number of segments kept
+     */
+    public HistoryLog(Path dir, int segmentBytes, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), p);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all segments, oldest first, and hands every intact record to the consumer.
+     * Reading a segment stops at its end marker or at the first damaged record, e.g. one torn by a crash.
+     * Appending continues right behind the last intact record of the newest segment.
+     * @param consumer receives conversation and line of every record
+     */
+    public void recover(BiConsumer<String, String> consumer) throws IOException {
+        for (Long index : new ArrayList<>(segments.keySet())) {
+            MappedByteBuffer buf = map(segments.get(index));
+            while (buf.remaining() >= HEADER) {
+                int start = buf.position();
+                int len = buf.getInt();
+                int sum = buf.getInt();
+                if (len <= 2 || len > buf.remaining()) {
+                    buf.position(start);
+                    break;
+                }
+                byte[] payload = new byte[len];
+                buf.get(payload);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int)crc.getValue() != sum) {
+                    buf.position(start);
+                    break;
+                }
+                int convLen = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                if (2 + convLen > len) {
+                    buf.position(start);
+                    break;
+                }
+                consumer.accept(new String(payload, 2, convLen, StandardCharsets.UTF_8),
+                        new String(payload, 2 + convLen, len - 2 - convLen, StandardCharsets.UTF_8));
+            }
+            current = buf;
+            currentIndex = index;
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() throws IOException {
+        if (current == null)
+            roll();
+        Thread t = new Thread(this::writeLoop, "toastcarsten-history");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a line for writing. Never blocks, if the writer falls too far behind the line is not persisted.
+     * @param conversation key of the conversation
+     * @param line the chat line
+     */
+    public void append(String conversation, String line) {
+        if (!queue.offer(new Entry(conversation, line)))
+            dropped.incrementAndGet();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry e : batch)
+                    write(e);
+                // mark the end of the data, a later record overwrites the marker
+                if (current.remaining() >= 4)
+                    current.putInt(current.position(), 0);
+                // one flush for the whole batch
+                current.force();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error writing the message history.");
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(Entry e) throws IOException {
+        byte[] conv = e.conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] line = e.line.getBytes(StandardCharsets.UTF_8);
+        int len = 2 + conv.length + line.length;
+        if (HEADER + len > segmentBytes || conv.length > 0xFFFF)
+            return;
+        if (current.remaining() < HEADER + len) {
+            current.force();
+            roll();
+        }
+        crc.reset();
+        crc.update((byte)(conv.length >>> 8));
+        crc.update((byte)conv.length);
+        crc.update(conv, 0, conv.length);
+        crc.update(line, 0, line.length);
+        current.putInt(len);
+        current.putInt((int)crc.getValue());
+        current.putShort((short)conv.length);
+        current.put(conv);
+        current.put(line);
+    }
+
+    /**
+     * Starts a new segment and deletes the oldest ones beyond the limit.
+     */
+    private void roll() throws IOException {
+        ++currentIndex;
+        Path p = dir.resolve(String.format("%s%012d%s", PREFIX, currentIndex, SUFFIX));
+        segments.put(currentIndex, p);
+        current = map(p);
+        while (segments.size() > maxSegments)
+            Files.deleteIfExists(segments.pollFirstEntry().getValue());
+    }
+
+    private MappedByteBuffer map(Path p) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed, a new file is zero filled
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+}
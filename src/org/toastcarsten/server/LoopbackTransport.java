@@ -0,0 +1,659 @@
+package org.toastcarsten.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Connections in memory instead of sockets, for load tests without the kernel in the way:
+ * no ports, no file descriptors, no network stack, and the same bytes in the same order on every run.
+ *
+ * The test plays the clients through {@link Client} handles from {@link #connect(int)}.
+ * Each direction of a connection holds at most window bytes, like a socket buffer:
+ * a server that does not read leaves the client unable to send, a client that does not read makes the server queue.
+ * The pipes grow with their content, so a hundred thousand idle connections cost little more than their objects.
+ *
+ * Pollers report readiness like a Selector, level-triggered, but only look at the endpoints whose state changed
+ * or that were ready at the last select. Together with {@link ChatServer#step()} and a {@link SimulatedClock},
+ * a server can be driven on the thread of the test, one cycle at a time.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final int READ = 1;
+    private static final int WRITE = 2;
+    private static final int ACCEPT = 4;
+
+    private final int window;
+    // guarded by this
+    private final HashMap<Integer, Listener> listeners = new HashMap<>();
+    private int nextPort = 1;
+
+    /**
+     * Creates a transport with 64 KB in flight per direction and connection.
+     */
+    public LoopbackTransport() {
+        this(64 * 1024);
+    }
+
+    /**
+     * @param window bytes in flight per direction and connection
+     */
+    public LoopbackTransport(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    public Transport.Poller openPoller() {
+        return new Poller();
+    }
+
+    @Override
+    public synchronized Transport.Listener listen(int port, int backlog, Transport.Poller poller) throws IOException {
+        if (port == 0) {
+            while (listeners.containsKey(nextPort))
+                ++nextPort;
+            port = nextPort;
+        }
+        if (listeners.containsKey(port))
+            throw new IOException("Port " + port + " is already in use");
+        Listener l = new Listener(port, Math.max(1, backlog), (Poller)poller);
+        listeners.put(port, l);
+        return l;
+    }
+
+    /**
+     * Opens a connection from the loopback address.
+     * @param port port of a listener of this transport
+     * @return the client side of the connection, the server sees it once it has accepted it
+     */
+    public Client connect(int port) throws IOException {
+        return connect(port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param port port of a listener of this transport
+     * @param from the address the server sees for the client
+     * @return the client side of the connection
+     * @throws ConnectException if nothing listens on the port or its backlog is full
+     */
+    public Client connect(int port, InetAddress from) throws IOException {
+        Listener l;
+        synchronized (this) {
+            l = listeners.get(port);
+        }
+        if (l == null)
+            throw new ConnectException("Connection refused");
+        LoopbackEndpoint e = new LoopbackEndpoint(from, new Pipe(window), new Pipe(window));
+        l.offer(e);
+        return e.client;
+    }
+
+    private synchronized void unbind(Listener l) {
+        listeners.remove(l.port, l);
+    }
+
+    /**
+     * One direction of a connection: a byte queue of at most window bytes, allocated as it fills.
+     * Guarded by the endpoint it belongs to.
+     */
+    private static class Pipe {
+        private static final byte[] EMPTY = new byte[0];
+        private final int window;
+        private byte[] data = EMPTY;
+        private int head = 0;
+        private int tail = 0;
+
+        Pipe(int window) {
+            this.window = window;
+        }
+
+        int size() {
+            return tail - head;
+        }
+
+        int free() {
+            return window - size();
+        }
+
+        /**
+         * @return the number of bytes taken from src, at most the free space
+         */
+        int put(ByteBuffer src) {
+            int n = Math.min(src.remaining(), free());
+            if (n == 0)
+                return 0;
+            if (tail + n > data.length) {
+                int size = size();
+                if (size + n > data.length) {
+                    // double, but never beyond the window
+                    byte[] grown = new byte[Math.min(window, Math.max(size + n, Math.max(256, data.length * 2)))];
+                    System.arraycopy(data, head, grown, 0, size);
+                    data = grown;
+                } else {
+                    System.arraycopy(data, head, data, 0, size);
+                }
+                head = 0;
+                tail = size;
+            }
+            src.get(data, tail, n);
+            tail += n;
+            return n;
+        }
+
+        /**
+         * @return the number of bytes copied to dst
+         */
+        int take(ByteBuffer dst) {
+            int n = Math.min(dst.remaining(), size());
+            dst.put(data, head, n);
+            skip(n);
+            return n;
+        }
+
+        void skip(int n) {
+            head += n;
+            if (head == tail)
+                head = tail = 0;
+        }
+
+        byte[] takeAll() {
+            byte[] b = new byte[size()];
+            System.arraycopy(data, head, b, 0, b.length);
+            skip(b.length);
+            return b;
+        }
+
+        /**
+         * Gives the memory back, for a connection that is gone.
+         */
+        void clear() {
+            data = EMPTY;
+            head = tail = 0;
+        }
+    }
+
+    /**
+     * Something a poller keeps track of, an endpoint or a listener.
+     */
+    private abstract static class Registered implements Transport.Pollable {
+        // the poller this is registered with, null before
+        volatile Poller poller;
+        // set while in the list of the poller to look at during the next select
+        boolean signalled = false;
+        // result of the last select
+        int ready = 0;
+
+        /**
+         * @return what could be reported right now, restricted to the interest
+         */
+        abstract int readyOps();
+
+        /**
+         * Tells the poller to look at this again, after a change that may have made it ready.
+         */
+        void signal() {
+            Poller p = poller;
+            if (p != null)
+                p.signal(this);
+        }
+
+        @Override
+        public boolean isReadable() {
+            return (ready & READ) != 0;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return (ready & WRITE) != 0;
+        }
+
+        @Override
+        public boolean isAcceptable() {
+            return (ready & ACCEPT) != 0;
+        }
+    }
+
+    private static class Poller implements Transport.Poller {
+        // guarded by this
+        private ArrayList<Registered> signalled = new ArrayList<>();
+        private boolean woken = false;
+        private boolean closed = false;
+        // only used by the thread of the reactor
+        private ArrayList<Registered> checking = new ArrayList<>();
+        private final ArrayList<Registered> ready = new ArrayList<>();
+        private int nextReady = 0;
+
+        @Override
+        public void register(Endpoint endpoint) throws IOException {
+            LoopbackEndpoint e = (LoopbackEndpoint)endpoint;
+            synchronized (e) {
+                if (e.closed)
+                    throw new ClosedChannelException();
+                e.poller = this;
+                e.readInterest = true;
+            }
+            // the client may have sent something already
+            e.signal();
+        }
+
+        synchronized void signal(Registered r) {
+            if (r.signalled)
+                return;
+            r.signalled = true;
+            signalled.add(r);
+            notifyAll();
+        }
+
+        @Override
+        public int select(long timeoutMillis) throws IOException {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                long now;
+                while (signalled.isEmpty() && ready.isEmpty() && !woken && !closed
+                        && (now = System.currentTimeMillis()) < deadline) {
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            return selectNow();
+        }
+
+        @Override
+        public int selectNow() throws IOException {
+            // whatever was ready last time is looked at again, an endpoint stays ready until it has been served
+            for (int i = 0; i < ready.size(); ++i)
+                signal(ready.get(i));
+            ready.clear();
+            nextReady = 0;
+            synchronized (this) {
+                woken = false;
+                ArrayList<Registered> swap = checking;
+                checking = signalled;
+                signalled = swap;
+                for (int i = 0; i < checking.size(); ++i)
+                    checking.get(i).signalled = false;
+            }
+            for (int i = 0; i < checking.size(); ++i) {
+                Registered r = checking.get(i);
+                r.ready = r.readyOps();
+                if (r.ready != 0)
+                    ready.add(r);
+            }
+            checking.clear();
+            return ready.size();
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        @Override
+        public Transport.Pollable next() {
+            if (nextReady == ready.size())
+                return null;
+            return ready.get(nextReady++);
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private class Listener extends Registered implements Transport.Listener {
+        private final int port;
+        private final int backlog;
+        // guarded by this
+        private final ArrayDeque<LoopbackEndpoint> waiting = new ArrayDeque<>();
+        private boolean acceptInterest = true;
+        private boolean closed = false;
+
+        Listener(int port, int backlog, Poller poller) {
+            this.port = port;
+            this.backlog = backlog;
+            this.poller = poller;
+        }
+
+        void offer(LoopbackEndpoint e) throws IOException {
+            synchronized (this) {
+                if (closed || waiting.size() >= backlog)
+                    throw new ConnectException("Connection refused");
+                waiting.add(e);
+                if (!acceptInterest)
+                    return;
+            }
+            signal();
+        }
+
+        @Override
+        public synchronized Endpoint accept() {
+            return waiting.poll();
+        }
+
+        @Override
+        public void setAcceptInterest(boolean on) {
+            synchronized (this) {
+                acceptInterest = on;
+            }
+            if (on)
+                signal();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return port;
+        }
+
+        @Override
+        synchronized int readyOps() {
+            return acceptInterest && !waiting.isEmpty() ? ACCEPT : 0;
+        }
+
+        @Override
+        public synchronized boolean isValid() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                waiting.clear();
+            }
+            unbind(this);
+        }
+    }
+
+    /**
+     * The server side of a connection. Its monitor guards both pipes, so client and server may live on different threads.
+     */
+    private static class LoopbackEndpoint extends Registered implements Endpoint {
+        private final InetAddress address;
+        // from the client to the server and back
+        private final Pipe inbound;
+        private final Pipe outbound;
+        private final Client client;
+        private boolean readInterest = false;
+        private boolean writeInterest = false;
+        // closed by the server, or by the client: then the server reads the rest and then the end of the stream
+        private boolean closed = false;
+        private boolean clientClosed = false;
+        // set if the client drops everything it gets right away, the server can always write then
+        private boolean discarding = false;
+        private long sent = 0;
+        private long received = 0;
+
+        LoopbackEndpoint(InetAddress address, Pipe inbound, Pipe outbound) {
+            this.address = address;
+            this.inbound = inbound;
+            this.outbound = outbound;
+            this.client = new Client(this);
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public void setReadInterest(boolean on) {
+            synchronized (this) {
+                readInterest = on;
+            }
+            if (on)
+                signal();
+        }
+
+        @Override
+        public void setWriteInterest(boolean on) {
+            synchronized (this) {
+                writeInterest = on;
+            }
+            if (on)
+                signal();
+        }
+
+        @Override
+        synchronized int readyOps() {
+            if (closed)
+                return 0;
+            int ops = 0;
+            if (readInterest && (inbound.size() > 0 || clientClosed))
+                ops |= READ;
+            if (writeInterest && (discarding || outbound.free() > 0 || clientClosed))
+                ops |= WRITE;
+            return ops;
+        }
+
+        @Override
+        public synchronized boolean isValid() {
+            return !closed && poller != null;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            if (inbound.size() == 0)
+                return clientClosed ? -1 : 0;
+            return inbound.take(dst);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            if (clientClosed)
+                throw new IOException("Connection reset by peer");
+            int n;
+            if (discarding) {
+                n = src.remaining();
+                src.position(src.limit());
+            } else {
+                n = outbound.put(src);
+            }
+            received += n;
+            return n;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long n = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                n += write(srcs[i]);
+                if (srcs[i].hasRemaining())
+                    break;
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            inbound.clear();
+        }
+    }
+
+    /**
+     * The client side of a connection, used by the test. Nothing here blocks.
+     */
+    public static class Client {
+        private final LoopbackEndpoint e;
+
+        private Client(LoopbackEndpoint e) {
+            this.e = e;
+        }
+
+        /**
+         * Sends as much of the given bytes as the window allows.
+         * @param src bytes to send
+         * @return the number of bytes sent
+         */
+        public int write(ByteBuffer src) throws IOException {
+            int n;
+            synchronized (e) {
+                if (e.clientClosed)
+                    throw new ClosedChannelException();
+                if (e.closed)
+                    throw new IOException("Connection reset by peer");
+                boolean wasEmpty = e.inbound.size() == 0;
+                n = e.inbound.put(src);
+                e.sent += n;
+                // the server is only told when there was nothing to read before
+                if (n == 0 || !wasEmpty || !e.readInterest)
+                    return n;
+            }
+            e.signal();
+            return n;
+        }
+
+        /**
+         * Sends a line, a line terminator is appended if missing.
+         * @param line the line
+         * @return false if the server has not read enough yet to make room for the whole line, nothing has been sent then
+         */
+        public boolean send(String line) throws IOException {
+            byte[] b = (line.endsWith("\n") ? line : line + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (e) {
+                if (e.inbound.free() < b.length)
+                    return false;
+                write(ByteBuffer.wrap(b));
+            }
+            return true;
+        }
+
+        /**
+         * @param dst where to copy received bytes to
+         * @return the number of bytes received, -1 if the server closed the connection and everything has been read
+         */
+        public int read(ByteBuffer dst) {
+            int n;
+            synchronized (e) {
+                if (e.outbound.size() == 0)
+                    return e.closed ? -1 : 0;
+                n = e.outbound.take(dst);
+                if (!e.writeInterest)
+                    return n;
+            }
+            e.signal();
+            return n;
+        }
+
+        /**
+         * @return everything received so far as text, empty if nothing has been received
+         */
+        public String receive() {
+            byte[] b;
+            synchronized (e) {
+                b = e.outbound.takeAll();
+                if (b.length == 0 || !e.writeInterest)
+                    return new String(b, StandardCharsets.UTF_8);
+            }
+            e.signal();
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Drops everything received so far without copying it, for clients that only need to keep up.
+         * @return the number of bytes dropped
+         */
+        public int discard() {
+            int n;
+            synchronized (e) {
+                n = e.outbound.size();
+                e.outbound.skip(n);
+                if (n == 0 || !e.writeInterest)
+                    return n;
+            }
+            e.signal();
+            return n;
+        }
+
+        /**
+         * Makes the client drop everything from now on without copying it, as one that reads as fast as it can.
+         * The server is never held back by the window then, only the bytes are counted.
+         * @param on true to drop, false to keep what arrives from now on
+         */
+        public void setDiscarding(boolean on) {
+            synchronized (e) {
+                e.discarding = on;
+                e.outbound.clear();
+                if (!on || !e.writeInterest)
+                    return;
+            }
+            e.signal();
+        }
+
+        /**
+         * @return the number of bytes sent by the client so far
+         */
+        public long getBytesSent() {
+            synchronized (e) {
+                return e.sent;
+            }
+        }
+
+        /**
+         * @return the number of bytes the server has written to the client so far, read or not
+         */
+        public long getBytesReceived() {
+            synchronized (e) {
+                return e.received;
+            }
+        }
+
+        /**
+         * @return the number of bytes received and not read yet
+         */
+        public int available() {
+            synchronized (e) {
+                return e.outbound.size();
+            }
+        }
+
+        /**
+         * @return true once the server has closed the connection
+         */
+        public boolean isClosed() {
+            synchronized (e) {
+                return e.closed;
+            }
+        }
+
+        /**
+         * Closes the connection, the server reads what has been sent before and then the end of the stream.
+         */
+        public void close() {
+            synchronized (e) {
+                if (e.clientClosed)
+                    return;
+                e.clientClosed = true;
+                e.outbound.clear();
+            }
+            e.signal();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.Histogram;
+import org.toastcarsten.shared.Protocol;
+
+/**
+ * Counters and histograms of one reactor.
+ * Only the thread of the reactor records, so recording needs neither locks nor allocations.
+ * Other threads read the values without synchronization, which is good enough for monitoring.
+ */
+public class Metrics {
+
+    /**
+     * Command types with their own counters.
+     */
+    public enum CommandType {
+        Login, Message, UserlistRequest, Logout, Other;
+
+        public static CommandType of(Protocol.ClientCommand cmd) {
+            if (cmd instanceof Protocol.Message)
+                return Message;
+            if (cmd instanceof Protocol.Login)
+                return Login;
+            if (cmd instanceof Protocol.UserlistRequest)
+                return UserlistRequest;
+            if (cmd instanceof Protocol.Logout)
+                return Logout;
+            return Other;
+        }
+    }
+
+    private static final CommandType[] commandTypes = CommandType.values();
+
+    // select loop
+    long loopIterations = 0;
+    final Histogram loopNanos = new Histogram();
+    final Histogram lagNanos = new Histogram();
+    final Histogram eventsPerCycle = new Histogram();
+    // traffic
+    long bytesIn = 0;
+    long bytesOut = 0;
+    long outboundBacklog = 0;
+    long flushes = 0;
+    // compression, bytes before and after
+    long compressIn = 0;
+    long compressOut = 0;
+    long compressNanos = 0;
+    // slow consumers
+    long droppedChat = 0;
+    long skippedPresence = 0;
+    long evictions = 0;
+    // flood protection
+    long throttles = 0;
+    // admission
+    long refused = 0;
+    long lobbyTimeouts = 0;
+    // commands
+    final long[] commandCounts = new long[commandTypes.length];
+    final Histogram[] commandNanos = new Histogram[commandTypes.length];
+    final Histogram fanoutSize = new Histogram();
+
+    public Metrics() {
+        for (int i = 0; i < commandNanos.length; ++i)
+            commandNanos[i] = new Histogram();
+    }
+
+    /**
+     * @param busyNanos time spent processing events in one iteration of the select loop
+     * @param events number of selected keys
+     */
+    public void recordLoop(long busyNanos, int events) {
+        ++loopIterations;
+        loopNanos.record(busyNanos);
+        eventsPerCycle.record(events);
+    }
+
+    /**
+     * @param lateNanos how much later than requested the select loop woke up for a timer tick
+     */
+    public void recordLag(long lateNanos) {
+        lagNanos.record(lateNanos);
+    }
+
+    public void recordCommand(CommandType type, long nanos) {
+        ++commandCounts[type.ordinal()];
+        commandNanos[type.ordinal()].record(nanos);
+    }
+
+    public void recordRead(int bytes) {
+        bytesIn += bytes;
+    }
+
+    public void recordQueued(int bytes) {
+        outboundBacklog += bytes;
+    }
+
+    /**
+     * @param bytes bytes written to a socket, or dropped from a queue without writing
+     * @param written true if the bytes actually went out
+     */
+    public void recordDequeued(long bytes, boolean written) {
+        outboundBacklog -= bytes;
+        if (written)
+            bytesOut += bytes;
+    }
+
+    /**
+     * Counts one flush of an outbound queue, which is at least one write to a socket.
+     */
+    public void recordFlush() {
+        ++flushes;
+    }
+
+    /**
+     * @param in bytes handed to the compressor
+     * @param out bytes it produced, including block headers
+     * @param nanos time spent compressing
+     */
+    public void recordCompression(long in, long out, long nanos) {
+        compressIn += in;
+        compressOut += out;
+        compressNanos += nanos;
+    }
+
+    /**
+     * @param kind kind of a frame that has not been delivered to a slow consumer
+     */
+    public void recordShed(Frame.Kind kind) {
+        if (kind == Frame.Kind.Chat)
+            ++droppedChat;
+        else if (kind == Frame.Kind.Presence)
+            ++skippedPresence;
+    }
+
+    public void recordEviction() {
+        ++evictions;
+    }
+
+    /**
+     * Counts one time reading from a user has been paused because it exceeded its rate limits.
+     */
+    public void recordThrottle() {
+        ++throttles;
+    }
+
+    /**
+     * Counts one connection closed right after accepting it, because its address had too many connections.
+     */
+    public void recordRefused() {
+        ++refused;
+    }
+
+    /**
+     * Counts one connection closed because it did not log in in time.
+     */
+    public void recordLobbyTimeout() {
+        ++lobbyTimeouts;
+    }
+
+    public void recordFanout(int recipients) {
+        fanoutSize.record(recipients);
+    }
+}
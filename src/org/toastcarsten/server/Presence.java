@@ -0,0 +1,172 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.Protocol;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Collects joins and leaves for a short window and announces them together, e.g. "/userjoined a,b,c".
+ * When many users reconnect at once, every participant gets a few lines per window instead of one line per user.
+ *
+ * Only the net change of a name within a window is announced: a user who leaves and comes back
+ * (or joins and leaves again) before the window ends is not mentioned at all.
+ *
+ * Batches are announced by a thread of their own once {@link #start()} has been called,
+ * a server driven step by step calls {@link #announceDue()} instead.
+ */
+public class Presence {
+
+    // the value of a name that joined, names that left map to their reason
+    private static final Object JOINED = new Object();
+
+    private final long windowMillis;
+    private final Clock clock;
+    private final Consumer<Frame> out;
+    // guarded by this
+    private LinkedHashMap<String, Object> pending = new LinkedHashMap<>();
+    private long firstAt;
+    private boolean started = false;
+
+    /**
+     * @param windowMillis how long to collect before announcing, 0 announces every change on its own right away
+     * @param clock what the window is measured with
+     * @param out called with the frames to send to everyone, on the thread of the batcher or with 0 on the thread of the change
+     */
+    public Presence(long windowMillis, Clock clock, Consumer<Frame> out) {
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.out = out;
+    }
+
+    /**
+     * Starts the thread that announces the batches. Does nothing if it runs already or there is no window.
+     */
+    public synchronized void start() {
+        if (started || windowMillis <= 0)
+            return;
+        started = true;
+        Thread t = new Thread(this::run, "toastcarsten-presence");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @param name name of a user that logged in
+     */
+    public void joined(String name) {
+        change(name, JOINED);
+    }
+
+    /**
+     * @param name name of a user that is gone
+     * @param reason why
+     */
+    public void left(String name, Protocol.Reason reason) {
+        change(name, reason);
+    }
+
+    private void change(String name, Object change) {
+        if (windowMillis <= 0) {
+            LinkedHashMap<String, Object> single = new LinkedHashMap<>();
+            single.put(name, change);
+            announce(single);
+            return;
+        }
+        synchronized (this) {
+            Object before = pending.remove(name);
+            // a join cancels a leave in the same window and vice versa
+            if (before == null || (before == JOINED) == (change == JOINED))
+                pending.put(name, change);
+            if (pending.size() == 1 && before == null) {
+                firstAt = clock.millis();
+                notifyAll();
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            LinkedHashMap<String, Object> batch;
+            try {
+                synchronized (this) {
+                    while (pending.isEmpty())
+                        wait();
+                    long now;
+                    while ((now = clock.millis()) < firstAt + windowMillis)
+                        wait(firstAt + windowMillis - now);
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                announce(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                System.err.println("Error announcing joins and leaves.");
+            }
+        }
+    }
+
+    /**
+     * Announces the pending changes if their window has passed, on the calling thread.
+     */
+    public void announceDue() {
+        LinkedHashMap<String, Object> batch;
+        synchronized (this) {
+            if (pending.isEmpty() || clock.millis() < firstAt + windowMillis)
+                return;
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        announce(batch);
+    }
+
+    /**
+     * Sends one line for the joins and one per reason for the leaves, split so that no line exceeds a page of the userlist.
+     */
+    private void announce(Map<String, Object> batch) {
+        List<String> joined = new ArrayList<>();
+        EnumMap<Protocol.Reason, List<String>> left = new EnumMap<>(Protocol.Reason.class);
+        for (Map.Entry<String, Object> e : batch.entrySet()) {
+            if (e.getValue() == JOINED)
+                joined.add(e.getKey());
+            else
+                left.computeIfAbsent((Protocol.Reason)e.getValue(), r -> new ArrayList<>()).add(e.getKey());
+        }
+        for (Map.Entry<Protocol.Reason, List<String>> e : left.entrySet()) {
+            for (List<String> names : split(e.getValue()))
+                out.accept(FrameEncoder.userLeft(names, e.getKey()));
+        }
+        for (List<String> names : split(joined))
+            out.accept(FrameEncoder.userJoined(names));
+    }
+
+    /**
+     * @param names names to announce
+     * @return groups of names that fit into one line each
+     */
+    static List<List<String>> split(List<String> names) {
+        List<List<String>> groups = new ArrayList<>();
+        int from = 0;
+        int bytes = 0;
+        for (int i = 0; i < names.size(); ++i) {
+            int n = names.get(i).length() + 1;
+            if (bytes + n > Userlist.PAGE_BYTES && i > from) {
+                groups.add(names.subList(from, i));
+                from = i;
+                bytes = 0;
+            }
+            bytes += n;
+        }
+        if (from < names.size())
+            groups.add(names.subList(from, names.size()));
+        return groups;
+    }
+}
@@ -0,0 +1,107 @@
+package org.toastcarsten.server;
+
+/**
+ * A token bucket: tokens flow in at a fixed rate up to a burst size, every unit of work takes some.
+ * Taking more than there is leaves the bucket in debt, which has to be paid off before anything is available again.
+ * That way a read can be accounted for after the fact, when its size is known.
+ *
+ * Pure arithmetic on longs, refilled lazily from the caller's clock, so checking it costs no allocation and no system call.
+ * Not thread-safe, a bucket belongs to the thread serving its connection.
+ */
+public class RateLimiter {
+
+    private static final long NANOS = 1_000_000_000L;
+
+    private final long rate;
+    private final long burst;
+    private long tokens;
+    // time up to which the flow has been added to tokens
+    private long last;
+
+    /**
+     * Creates a full bucket.
+     * @param rate tokens per second, positive
+     * @param burst maximum number of tokens, at least 1
+     * @param now current time in nanoseconds, see {@link System#nanoTime()}
+     */
+    public RateLimiter(long rate, long burst, long now) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.last = now;
+    }
+
+    /**
+     * @param rate tokens per second, 0 or less for no limit
+     * @param burst maximum number of tokens
+     * @return a full bucket, or null if there is no limit
+     */
+    public static RateLimiter of(long rate, long burst) {
+        return of(rate, burst, System.nanoTime());
+    }
+
+    /**
+     * @param rate tokens per second, 0 or less for no limit
+     * @param burst maximum number of tokens
+     * @param now current time in nanoseconds of the clock the bucket is used with
+     * @return a full bucket, or null if there is no limit
+     */
+    public static RateLimiter of(long rate, long burst, long now) {
+        return rate > 0 ? new RateLimiter(rate, burst, now) : null;
+    }
+
+    /**
+     * @param now current time in nanoseconds
+     * @return true if at least one token is available
+     */
+    public boolean isAvailable(long now) {
+        refill(now);
+        return tokens > 0;
+    }
+
+    /**
+     * @param now current time in nanoseconds
+     * @return true if the bucket holds its burst size, i.e. nothing has been taken for a while
+     */
+    public boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    /**
+     * Takes tokens, even if there are not enough.
+     * @param n number of tokens
+     * @param now current time in nanoseconds
+     */
+    public void take(long n, long now) {
+        refill(now);
+        tokens -= n;
+    }
+
+    /**
+     * @param now current time in nanoseconds
+     * @return nanoseconds until a token is available, 0 if one is available now
+     */
+    public long nanosUntilAvailable(long now) {
+        refill(now);
+        if (tokens > 0)
+            return 0;
+        // the flow since last has not yet added up to a whole token
+        return Math.max(1, ((1 - tokens) * NANOS + rate - 1) / rate - (now - last));
+    }
+
+    private void refill(long now) {
+        long elapsed = now - last;
+        if (elapsed <= 0)
+            return;
+        if (elapsed >= (burst - tokens) * NANOS / rate) {
+            tokens = burst;
+            last = now;
+            return;
+        }
+        long add = elapsed * rate / NANOS;
+        tokens += add;
+        // keep the remainder, so slow rates do not lose fractions of a token on every call
+        last += add * NANOS / rate;
+    }
+}
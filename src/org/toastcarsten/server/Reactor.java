@@ -0,0 +1,484 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.errors.ConnectionClosedException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An event loop with its own poller, owning a subset of the connected users.
+ * Everything that touches a user (its endpoint, its queues, its timeout) happens on the thread of its reactor.
+ * Other threads hand work over through {@link #execute(Runnable)}.
+ */
+public class Reactor implements Runnable {
+
+    private final ChatServer server;
+    private final Transport.Poller poller;
+    private final Clock clock;
+    private final TimeoutService timeouts;
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final ArrayList<User> users = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    // users that got messages queued during this cycle, flushed together before the next select
+    private final ArrayList<User> dirty = new ArrayList<>();
+    private long dirtySince = 0;
+    private final ByteBuffer[] gather;
+    private final int writeBatch;
+    private final long flushLatencyNanos;
+    // slow consumers
+    private Backpressure backpressure;
+    private final ArrayList<User> evictions = new ArrayList<>();
+    // users not read from until they are back within their rate limits
+    private final ArrayList<User> throttled = new ArrayList<>();
+    private final ArrayList<User> resuming = new ArrayList<>();
+    // accepted connections not registered yet, at most admissionBudget of them are taken over per cycle
+    private final ArrayDeque<Endpoint> admissions = new ArrayDeque<>();
+    private final int admissionBudget;
+    private final long loginTimeoutMillis;
+    // number of users and queued connections, readable from other threads for load balancing
+    private volatile int load = 0;
+    private volatile Thread thread;
+    // time the next timer tick was due at, to measure how late the loop is
+    private long tickDue = Long.MAX_VALUE;
+
+    public Reactor(ChatServer server) throws IOException {
+        this.server = server;
+        this.poller = server.getTransport().openPoller();
+        this.clock = server.getClock();
+        this.timeouts = new TimeoutService(clock.millis(), server::expire);
+        this.writeBatch = server.getConfig().writeBatch;
+        this.flushLatencyNanos = server.getConfig().flushLatencyMicros * 1000L;
+        this.gather = new ByteBuffer[writeBatch];
+        ServerConfig config = server.getConfig();
+        this.backpressure = new Backpressure(config, config.outboundBudget);
+        this.admissionBudget = config.admissionBudget;
+        this.loginTimeoutMillis = config.loginTimeoutMillis;
+    }
+
+    public void run() {
+        thread = Thread.currentThread();
+        while (true)
+            cycle(true);
+    }
+
+    /**
+     * Runs one cycle of the event loop on the calling thread, without waiting for events.
+     * The calling thread counts as the thread of this reactor from now on,
+     * so a test can drive the reactor instead of a thread of its own, see {@link ChatServer#step()}.
+     */
+    void runOnce() {
+        thread = Thread.currentThread();
+        cycle(false);
+    }
+
+    /**
+     * @param block true to wait for events until the next timeout tick, false to only take those that occurred already
+     */
+    private void cycle(boolean block) {
+        wakeupPending.set(false);
+        long start = System.nanoTime();
+        if (start > tickDue) {
+            // a timer tick was due, how late are we?
+            metrics.recordLag(start - tickDue);
+            tickDue = Long.MAX_VALUE;
+        }
+        runTasks();
+        admitPending();
+        try {
+            //remove inactive users, read from users within their limits again, write everything queued so far,
+            //then wait for events until the next timeout tick or the next throttled user is due
+            long wait = Math.min(timeouts.advance(clock.millis()), resumeThrottled());
+            flushDirty();
+            tickDue = System.nanoTime() + wait * 1_000_000L;
+            // connections still waiting for admission are taken over in the next cycle, after the events of this one
+            if (block && admissions.isEmpty())
+                poller.select(wait);
+            else
+                poller.selectNow();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error occured when waiting for events.");
+        }
+        long woke = System.nanoTime();
+        int events = 0;
+        //process all events that occured
+        Transport.Pollable event;
+        while ((event = poller.next()) != null) {
+            ++events;
+            if (!event.isValid())
+                continue;
+            try {
+                handle(event);
+            } catch (RuntimeException e) {
+                // a bug triggered by one connection must not end the loop of everyone else on this reactor
+                e.printStackTrace();
+                System.err.println("Error handling an event, dropping the connection.");
+                if (!event.isAcceptable())
+                    drop((Endpoint)event);
+            }
+            // a long cycle must not hold back what has been queued at its beginning
+            if (!dirty.isEmpty() && clock.nanos() - dirtySince > flushLatencyNanos)
+                flushDirty();
+        }
+        metrics.recordLoop(System.nanoTime() - woke, events);
+    }
+
+    /**
+     * Handles one event of the poller.
+     * @param event the event
+     */
+    private void handle(Transport.Pollable event) {
+        if (event.isWritable()) {
+            //a client can take more of its queued messages
+            User u = User.get((Endpoint)event);
+            try {
+                if (u != null)
+                    ChannelIO.flush(u);
+            } catch (IOException e) {
+                User.remove(u);
+                return;
+            }
+        }
+        if (event.isReadable()) {
+            //someone sent a message
+            try {
+                server.processRead((Endpoint)event);
+            } catch (IOException e) {
+                // the connection is broken (reset, malformed binary frame), drop it instead of selecting it forever.
+                // any client can cause this, so it is not worth a stack trace
+                drop((Endpoint)event);
+            } catch (ConnectionClosedException e) {
+                drop((Endpoint)event);
+            }
+        } else if (event.isAcceptable()) {
+            //someone tries to connect
+            try {
+                server.processAccept(this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error registering a client.");
+            }
+        }
+    }
+
+    /**
+     * Removes the user of a connection, if it still has one.
+     * @param e the connection
+     */
+    private static void drop(Endpoint e) {
+        User u = User.get(e);
+        if (u != null)
+            User.remove(u);
+    }
+
+    /**
+     * Runs a task on the thread of this reactor. If called from that thread, the task runs immediately,
+     * otherwise it is put into the mailbox and the poller is woken up.
+     * Tasks handed over by the same thread run in the order they were handed over.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        if (inReactor()) {
+            task.run();
+            return;
+        }
+        mailbox.offer(task);
+        // only the first task after the reactor went to sleep needs to wake it up
+        if (wakeupPending.compareAndSet(false, true))
+            poller.wakeup();
+    }
+
+    /**
+     * Queues an accepted connection, it is registered in one of the next cycles. Must be called on the thread of this reactor.
+     * @param endpoint the connection
+     */
+    void admit(Endpoint endpoint) {
+        admissions.add(endpoint);
+        load = users.size() + admissions.size();
+    }
+
+    /**
+     * Registers up to admissionBudget of the queued connections, so a connection storm
+     * only takes a bounded share of every cycle away from the users that are already connected.
+     */
+    private void admitPending() {
+        int n = Math.min(admissionBudget, admissions.size());
+        if (n == 0)
+            return;
+        for (int i = 0; i < n; ++i) {
+            Endpoint endpoint = admissions.poll();
+            try {
+                register(endpoint);
+            } catch (IOException e) {
+                // gone before it was registered
+                server.refused(endpoint);
+            }
+        }
+        server.admitted(n);
+    }
+
+    /**
+     * Remembers a user whose outbound queue got new messages, it is flushed before the reactor waits for events again.
+     * All messages queued for the user until then go out in as few gathering writes as possible.
+     * Must be called on the thread of this reactor.
+     * @param u the user
+     */
+    void markDirty(User u) {
+        if (u.dirty)
+            return;
+        u.dirty = true;
+        if (dirty.isEmpty())
+            dirtySince = clock.nanos();
+        dirty.add(u);
+    }
+
+    /**
+     * Flushes all users marked by {@link #markDirty(User)}.
+     * Users whose endpoint does not take everything are left to the write interest.
+     */
+    private void flushDirty() {
+        // users are only removed here, never while a fan-out iterates them
+        for (int i = 0; i < evictions.size(); ++i)
+            server.evict(evictions.get(i));
+        evictions.clear();
+        for (int i = 0; i < dirty.size(); ++i) {
+            User u = dirty.get(i);
+            u.dirty = false;
+            if (!u.isAttached())
+                continue;
+            try {
+                ChannelIO.flush(u);
+            } catch (IOException e) {
+                User.remove(u);
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Disconnects a user that does not keep up, once the current event has been handled.
+     * Must be called on the thread of this reactor.
+     * @param u the user
+     */
+    void evict(User u) {
+        evictions.add(u);
+        markDirty(u);
+    }
+
+    /**
+     * Stops reading from a user until the given time, then hands the user to {@link ChatServer#processFrames(User)}.
+     * Must be called on the thread of this reactor.
+     * @param u the user, over its rate limits
+     * @param resumeAt time to read again, see {@link Clock#nanos()}
+     */
+    void throttle(User u, long resumeAt) {
+        u.resumeAt = resumeAt;
+        if (u.isReadPaused())
+            return;
+        u.setReadPaused(true);
+        throttled.add(u);
+        metrics.recordThrottle();
+    }
+
+    /**
+     * Reads from throttled users again whose time has come.
+     * @return milliseconds until the next throttled user is due
+     */
+    private long resumeThrottled() {
+        if (throttled.isEmpty())
+            return Long.MAX_VALUE;
+        long now = clock.nanos();
+        int kept = 0;
+        for (int i = 0; i < throttled.size(); ++i) {
+            User u = throttled.get(i);
+            if (u.resumeAt <= now)
+                resuming.add(u);
+            else if (u.isAttached())
+                throttled.set(kept++, u);
+        }
+        while (throttled.size() > kept)
+            throttled.remove(throttled.size() - 1);
+        for (int i = 0; i < resuming.size(); ++i) {
+            User u = resuming.get(i);
+            // a pending login resumes reading when it is done
+            if (!u.isAttached() || u.isLoginPending())
+                continue;
+            u.setReadPaused(false);
+            try {
+                // frames that arrived before the pause have not been executed yet, this may throttle the user again
+                server.processFrames(u);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error receiving a message.");
+                User.remove(u);
+            }
+        }
+        resuming.clear();
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < throttled.size(); ++i)
+            next = Math.min(next, throttled.get(i).resumeAt);
+        return next == Long.MAX_VALUE ? next : Math.max(1, (next - now + 999_999) / 1_000_000);
+    }
+
+    /**
+     * @return the slow consumer policy for the users of this reactor
+     */
+    Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * @param bytes the share of the server-wide outbound budget for the users of this reactor
+     */
+    void setOutboundBudget(long bytes) {
+        backpressure = new Backpressure(server.getConfig(), bytes);
+    }
+
+    /**
+     * @return the clock timeouts and rate limits are measured with
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return milliseconds a new connection has to log in
+     */
+    long getLoginTimeout() {
+        return loginTimeoutMillis;
+    }
+
+    /**
+     * @return scratch array for gathering writes, only to be used on the thread of this reactor
+     */
+    ByteBuffer[] getGatherBuffers() {
+        return gather;
+    }
+
+    /**
+     * @return the number of queued messages at which a user is flushed without waiting for the end of the cycle
+     */
+    int getWriteBatch() {
+        return writeBatch;
+    }
+
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Takes over a freshly accepted connection. Must be called on the thread of this reactor.
+     * @param endpoint the connection
+     * @return the user created for the connection
+     */
+    public User register(Endpoint endpoint) throws IOException {
+        poller.register(endpoint);
+        User u = new User(endpoint, this);
+        ServerConfig config = server.getConfig();
+        long now = clock.nanos();
+        u.setRateLimiters(RateLimiter.of(config.commandRate, config.commandBurst, now), RateLimiter.of(config.byteRate, config.byteBurst, now));
+        u.reactorIndex = users.size();
+        users.add(u);
+        load = users.size() + admissions.size();
+        return u;
+    }
+
+    /**
+     * Forgets a user that has been removed. Must be called on the thread of this reactor.
+     * @param u the user
+     */
+    void detach(User u) {
+        int i = u.reactorIndex;
+        if (i < 0 || i >= users.size() || users.get(i) != u)
+            return;
+        // move the last user into the gap
+        User last = users.remove(users.size() - 1);
+        if (last != u) {
+            users.set(i, last);
+            last.reactorIndex = i;
+        }
+        u.reactorIndex = -1;
+        load = users.size() + admissions.size();
+        server.getAddressLimit().release(u.getAddress());
+    }
+
+    /**
+     * Queues a frame for all logged in users of this reactor except the sender.
+     * Must be called on the thread of this reactor.
+     * @param sender name of the sender
+     * @param frame the encoded message
+     */
+    public void fanout(String sender, Frame frame) {
+        int recipients = 0;
+        for (int i = 0; i < users.size(); ++i) {
+            User u = users.get(i);
+            String name = u.getName();
+            if (name != null && !name.equals(sender)) {
+                try {
+                    ChannelIO.write(u, frame);
+                    ++recipients;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        metrics.recordFanout(recipients);
+    }
+
+    /**
+     * Queues a frame for the given users that belong to this reactor, except the sender.
+     * Must be called on the thread of this reactor.
+     * @param sender name of the sender
+     * @param frame the encoded message
+     * @param targets snapshot of the recipients, possibly spread over several reactors
+     */
+    public void fanout(String sender, Frame frame, User[] targets) {
+        int recipients = 0;
+        for (User u : targets) {
+            if (u.getReactor() != this || !u.isAttached())
+                continue;
+            String name = u.getName();
+            if (name != null && !name.equals(sender)) {
+                try {
+                    ChannelIO.write(u, frame);
+                    ++recipients;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        metrics.recordFanout(recipients);
+    }
+
+    public Transport.Poller getPoller() {
+        return poller;
+    }
+
+    public TimeoutService getTimeouts() {
+        return timeouts;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getLoad() {
+        return load;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mailbox.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
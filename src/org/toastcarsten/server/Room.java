@@ -0,0 +1,117 @@
+package org.toastcarsten.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A named conversation with its own set of members.
+ * Rooms exist as long as they have members: the first join creates a room, the last part removes it.
+ */
+public class Room {
+
+    // --------------- static ---------------
+
+    // accessed by all reactors, membership changes happen atomically per room
+    private static ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // told about rooms that have been removed, e.g. to drop their history
+    private static volatile Consumer<String> removalListener;
+
+    /**
+     * @param listener called with the name of every room that has been removed, on the thread that removed it
+     */
+    static void setRemovalListener(Consumer<String> listener) {
+        removalListener = listener;
+    }
+
+    public static Room get(String name) {
+        return rooms.get(name);
+    }
+
+    public static Collection<Room> getRooms() {
+        return rooms.values();
+    }
+
+    /**
+     * Adds a user to a room, creating the room if it does not exist.
+     * @param name name of the room
+     * @param u the user
+     * @return the room
+     */
+    public static Room join(String name, User u) {
+        return rooms.compute(name, (k, r) -> {
+            if (r == null)
+                r = new Room(k);
+            r.add(u);
+            return r;
+        });
+    }
+
+    /**
+     * Removes a user from a room, removing the room if it is empty afterwards.
+     * @param name name of the room
+     * @param u the user
+     */
+    public static void part(String name, User u) {
+        Room left = rooms.computeIfPresent(name, (k, r) -> {
+            r.remove(u);
+            return r.members.length == 0 ? null : r;
+        });
+        Consumer<String> l = removalListener;
+        // a room joined again right away may lose the lines of that moment, nothing else
+        if (left == null && l != null)
+            l.accept(name);
+    }
+
+    // --------------- non-static ---------------
+
+    private final String name;
+    // copy-on-write, so fan-out can iterate a snapshot from any thread
+    private volatile User[] members = new User[0];
+
+    private Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a snapshot of the members, must not be modified
+     */
+    public User[] getMembers() {
+        return members;
+    }
+
+    public boolean contains(User u) {
+        for (User m : members) {
+            if (m == u)
+                return true;
+        }
+        return false;
+    }
+
+    // only called within rooms.compute(), which serializes changes of the same room
+    private void add(User u) {
+        if (contains(u))
+            return;
+        User[] m = Arrays.copyOf(members, members.length + 1);
+        m[m.length - 1] = u;
+        members = m;
+    }
+
+    private void remove(User u) {
+        User[] m = members;
+        for (int i = 0; i < m.length; ++i) {
+            if (m[i] == u) {
+                User[] n = new User[m.length - 1];
+                System.arraycopy(m, 0, n, 0, i);
+                System.arraycopy(m, i + 1, n, i, m.length - i - 1);
+                members = n;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.toastcarsten.server;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tunables of the ChatServer. Defaults can be overridden with system properties,
+ * e.g. <code>-Dtoastcarsten.workers=4</code>.
+ */
+public class ServerConfig {
+
+    public int port = 47711;
+
+    /**
+     * "selector" serves all connections with reactors, "blocking" with a {@link BlockingServer},
+     * i.e. blocking reader and writer threads per connection.
+     */
+    public String mode = "selector";
+
+    /**
+     * Number of worker reactors. With 0, a single thread accepts and serves all connections.
+     * Otherwise one thread only accepts connections and hands them to the least loaded worker.
+     */
+    public int workers = 0;
+
+    /**
+     * Connections the operating system keeps waiting for the server to accept them, further attempts are refused.
+     */
+    public int acceptBacklog = 1024;
+
+    /**
+     * Connections accepted at most per cycle of the accepting reactor, the rest stays in the backlog until the next one.
+     */
+    public int acceptBatch = 256;
+
+    /**
+     * Accepted connections a reactor takes over per cycle, after it has served the events of its users.
+     * Once admissionQueue accepted connections wait for their reactor, the server stops accepting until half of them are in.
+     */
+    public int admissionBudget = 64;
+    public int admissionQueue = 4096;
+
+    /**
+     * Connections per client address, 0 for no limit. Connections beyond it are closed right after accepting them.
+     */
+    public int maxConnectionsPerIp = 0;
+
+    /**
+     * Milliseconds a connection may stay in the lobby, i.e. without a name, before it is closed.
+     * Sending something other than a successful login does not extend it.
+     */
+    public int loginTimeoutMillis = 10000;
+
+    /**
+     * Joins and leaves within this many milliseconds are announced together, e.g. "/userjoined a,b,c".
+     * With 0, every join and leave is announced on its own right away.
+     */
+    public int presenceWindowMillis = 100;
+
+    /**
+     * Names of the users allowed to use admin commands such as /stats.
+     * There is no authentication, so these names should be claimed early.
+     */
+    public Set<String> admins = new HashSet<>();
+
+    /**
+     * Maximum number of queued messages handed to the socket in one gathering write.
+     * A user with this many unwritten messages is flushed right away instead of at the end of the cycle.
+     */
+    public int writeBatch = 64;
+
+    /**
+     * Maximum time in microseconds a message may wait for the end of the event loop cycle before it is flushed.
+     */
+    public int flushLatencyMicros = 1000;
+
+    /**
+     * What happens to a client that does not read its messages fast enough.
+     */
+    public enum SlowConsumerPolicy {
+        /** Drop its oldest unsent chat lines to make room for new ones. */
+        DropChat,
+        /** Skip joins and leaves while it is behind. */
+        SkipPresence,
+        /** Disconnect it with the error SlowConsumer if nothing else helps. */
+        Disconnect
+    }
+
+    /**
+     * A client with more unsent bytes than the high watermark is behind, until it gets below the low watermark again.
+     */
+    public int outboundHighWatermark = 4 * 1024 * 1024;
+    public int outboundLowWatermark = 1024 * 1024;
+
+    /**
+     * Unsent bytes of all clients together. Every reactor gets an equal share,
+     * clients above the low watermark count as behind while their reactor exceeds it.
+     */
+    public long outboundBudget = 512L * 1024 * 1024;
+
+    /**
+     * Applied to clients that are behind, a comma separated list in the system property.
+     * With none of them, unsent messages are kept without limit.
+     */
+    public EnumSet<SlowConsumerPolicy> slowConsumerPolicy = EnumSet.allOf(SlowConsumerPolicy.class);
+
+    /**
+     * Flood protection: commands and received bytes per second a client may send, and how many at once after a pause.
+     * A client over its budget is not read from until the budget has refilled. A rate of 0 disables the limit.
+     */
+    public int commandRate = 50;
+    public int commandBurst = 200;
+    public int byteRate = 64 * 1024;
+    public int byteBurst = 256 * 1024;
+
+    /**
+     * Deflate level for clients that negotiate compression, see {@link org.toastcarsten.shared.Compression}.
+     * With 0, the server does not offer compression.
+     */
+    public int compressionLevel = 6;
+
+    /**
+     * Blocks of fewer bytes are sent uncompressed.
+     */
+    public int compressionThreshold = 128;
+
+    /**
+     * Number of chat lines kept in memory per conversation, 0 disables the history.
+     */
+    public int historyLines = 100;
+
+    /**
+     * Number of lines replayed to a user on login (of the conversation of everyone) and on joining a room.
+     */
+    public int historyReplay = 20;
+
+    /**
+     * Number of rooms whose lines are kept in memory. The rooms used least recently beyond it lose their history,
+     * as does every room once its last member has left.
+     */
+    public int historyRooms = 1024;
+
+    /**
+     * Directory of the persisted history, or null to keep it in memory only.
+     */
+    public String historyDir = null;
+
+    /**
+     * Size of a history log segment in bytes, and the number of segments kept.
+     */
+    public int historySegmentBytes = 8 * 1024 * 1024;
+    public int historySegments = 4;
+
+    /**
+     * Id of this node in the cluster, 0 for a server on its own. Only the selector mode can be part of a cluster.
+     */
+    public int nodeId = 0;
+
+    /**
+     * All nodes of the cluster including this one, as a comma separated list of id@host:port,
+     * e.g. <code>1@localhost:48001,2@localhost:48002</code>. The port is the one the nodes talk to each other on.
+     */
+    public String cluster = null;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig c = new ServerConfig();
+        c.port = Integer.getInteger("toastcarsten.port", c.port);
+        c.mode = System.getProperty("toastcarsten.mode", c.mode);
+        c.workers = Integer.getInteger("toastcarsten.workers", c.workers);
+        c.acceptBacklog = Integer.getInteger("toastcarsten.acceptBacklog", c.acceptBacklog);
+        c.acceptBatch = Math.max(1, Integer.getInteger("toastcarsten.acceptBatch", c.acceptBatch));
+        c.admissionBudget = Math.max(1, Integer.getInteger("toastcarsten.admissionBudget", c.admissionBudget));
+        c.admissionQueue = Math.max(1, Integer.getInteger("toastcarsten.admissionQueue", c.admissionQueue));
+        c.maxConnectionsPerIp = Integer.getInteger("toastcarsten.maxConnectionsPerIp", c.maxConnectionsPerIp);
+        c.loginTimeoutMillis = Integer.getInteger("toastcarsten.loginTimeoutMillis", c.loginTimeoutMillis);
+        c.presenceWindowMillis = Integer.getInteger("toastcarsten.presenceWindowMillis", c.presenceWindowMillis);
+        c.writeBatch = Math.max(1, Integer.getInteger("toastcarsten.writeBatch", c.writeBatch));
+        c.flushLatencyMicros = Integer.getInteger("toastcarsten.flushLatencyMicros", c.flushLatencyMicros);
+        c.outboundHighWatermark = Integer.getInteger("toastcarsten.outboundHighWatermark", c.outboundHighWatermark);
+        c.outboundLowWatermark = Integer.getInteger("toastcarsten.outboundLowWatermark", c.outboundLowWatermark);
+        c.outboundBudget = Long.getLong("toastcarsten.outboundBudget", c.outboundBudget);
+        String policy = System.getProperty("toastcarsten.slowConsumerPolicy");
+        if (policy != null) {
+            c.slowConsumerPolicy = EnumSet.noneOf(SlowConsumerPolicy.class);
+            for (String name : policy.split(",")) {
+                for (SlowConsumerPolicy p : SlowConsumerPolicy.values()) {
+                    if (p.name().toLowerCase(Locale.ROOT).equals(name.trim().toLowerCase(Locale.ROOT)))
+                        c.slowConsumerPolicy.add(p);
+                }
+            }
+        }
+        c.commandRate = Integer.getInteger("toastcarsten.commandRate", c.commandRate);
+        c.commandBurst = Integer.getInteger("toastcarsten.commandBurst", c.commandBurst);
+        c.byteRate = Integer.getInteger("toastcarsten.byteRate", c.byteRate);
+        c.byteBurst = Integer.getInteger("toastcarsten.byteBurst", c.byteBurst);
+        c.compressionLevel = Integer.getInteger("toastcarsten.compressionLevel", c.compressionLevel);
+        c.compressionThreshold = Integer.getInteger("toastcarsten.compressionThreshold", c.compressionThreshold);
+        c.historyLines = Integer.getInteger("toastcarsten.historyLines", c.historyLines);
+        c.historyReplay = Integer.getInteger("toastcarsten.historyReplay", c.historyReplay);
+        c.historyRooms = Integer.getInteger("toastcarsten.historyRooms", c.historyRooms);
+        c.historyDir = System.getProperty("toastcarsten.historyDir", c.historyDir);
+        c.historySegmentBytes = Integer.getInteger("toastcarsten.historySegmentBytes", c.historySegmentBytes);
+        c.historySegments = Integer.getInteger("toastcarsten.historySegments", c.historySegments);
+        c.nodeId = Integer.getInteger("toastcarsten.nodeId", c.nodeId);
+        c.cluster = System.getProperty("toastcarsten.cluster", c.cluster);
+        String admins = System.getProperty("toastcarsten.admins", "");
+        for (String name : admins.split(",")) {
+            if (!name.trim().isEmpty())
+                c.admins.add(name.trim());
+        }
+        return c;
+    }
+}
@@ -0,0 +1,265 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.Histogram;
+
+import java.util.Locale;
+
+/**
+ * Sums up the Metrics of all reactors of a server. Exposed via JMX and the /stats command.
+ */
+public class ServerStats implements ServerStatsMBean {
+
+    private final Reactor[] reactors;
+
+    public ServerStats(Reactor[] reactors) {
+        this.reactors = reactors;
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        return User.getUsers().size();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return User.getParticipants().size();
+    }
+
+    @Override
+    public long getLoopIterations() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().loopIterations;
+        return n;
+    }
+
+    @Override
+    public long getLoopTimeP50Micros() {
+        return merge(Field.loop).percentile(50) / 1000;
+    }
+
+    @Override
+    public long getLoopTimeP99Micros() {
+        return merge(Field.loop).percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLoopLagP99Micros() {
+        return merge(Field.lag).percentile(99) / 1000;
+    }
+
+    @Override
+    public double getEventsPerCycleMean() {
+        return merge(Field.events).mean();
+    }
+
+    @Override
+    public long getBytesIn() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().bytesIn;
+        return n;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().bytesOut;
+        return n;
+    }
+
+    @Override
+    public long getFlushCount() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().flushes;
+        return n;
+    }
+
+    @Override
+    public long getDroppedChatLines() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().droppedChat;
+        return n;
+    }
+
+    @Override
+    public long getSkippedPresenceEvents() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().skippedPresence;
+        return n;
+    }
+
+    @Override
+    public long getSlowConsumerEvictions() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().evictions;
+        return n;
+    }
+
+    @Override
+    public long getThrottleCount() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().throttles;
+        return n;
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().refused;
+        return n;
+    }
+
+    @Override
+    public long getLobbyTimeouts() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().lobbyTimeouts;
+        return n;
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().compressIn;
+        return n;
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().compressOut;
+        return n;
+    }
+
+    @Override
+    public long getCompressionCpuMicros() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().compressNanos;
+        return n / 1000;
+    }
+
+    @Override
+    public long getOutboundBacklogBytes() {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().outboundBacklog;
+        return n;
+    }
+
+    @Override
+    public long getFanoutSizeP99() {
+        return merge(Field.fanout).percentile(99);
+    }
+
+    @Override
+    public long getLoginCount() {
+        return commandCount(Metrics.CommandType.Login);
+    }
+
+    @Override
+    public long getMessageCount() {
+        return commandCount(Metrics.CommandType.Message);
+    }
+
+    @Override
+    public long getUserlistRequestCount() {
+        return commandCount(Metrics.CommandType.UserlistRequest);
+    }
+
+    @Override
+    public long getLogoutCount() {
+        return commandCount(Metrics.CommandType.Logout);
+    }
+
+    @Override
+    public long getLoginP99Micros() {
+        return commandNanos(Metrics.CommandType.Login).percentile(99) / 1000;
+    }
+
+    @Override
+    public long getMessageP99Micros() {
+        return commandNanos(Metrics.CommandType.Message).percentile(99) / 1000;
+    }
+
+    @Override
+    public long getUserlistRequestP99Micros() {
+        return commandNanos(Metrics.CommandType.UserlistRequest).percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLogoutP99Micros() {
+        return commandNanos(Metrics.CommandType.Logout).percentile(99) / 1000;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("connected=").append(getConnectedUsers());
+        sb.append(" loggedin=").append(getLoggedInUsers());
+        sb.append(" loops=").append(getLoopIterations());
+        sb.append(" loop_p50_us=").append(getLoopTimeP50Micros());
+        sb.append(" loop_p99_us=").append(getLoopTimeP99Micros());
+        sb.append(" lag_p99_us=").append(getLoopLagP99Micros());
+        sb.append(" events_mean=").append(String.format(Locale.ROOT, "%.2f", getEventsPerCycleMean()));
+        sb.append(" bytes_in=").append(getBytesIn());
+        sb.append(" bytes_out=").append(getBytesOut());
+        sb.append(" backlog_bytes=").append(getOutboundBacklogBytes());
+        sb.append(" flushes=").append(getFlushCount());
+        sb.append(" dropped_chat=").append(getDroppedChatLines());
+        sb.append(" skipped_presence=").append(getSkippedPresenceEvents());
+        sb.append(" evictions=").append(getSlowConsumerEvictions());
+        sb.append(" throttles=").append(getThrottleCount());
+        sb.append(" refused=").append(getRefusedConnections());
+        sb.append(" lobby_timeouts=").append(getLobbyTimeouts());
+        sb.append(" compress_in=").append(getCompressionBytesIn());
+        sb.append(" compress_out=").append(getCompressionBytesOut());
+        sb.append(" compress_cpu_us=").append(getCompressionCpuMicros());
+        sb.append(" fanout_p99=").append(getFanoutSizeP99());
+        for (Metrics.CommandType t : Metrics.CommandType.values()) {
+            sb.append(' ').append(t.name()).append("=").append(commandCount(t));
+            sb.append(' ').append(t.name()).append("_p99_us=").append(commandNanos(t).percentile(99) / 1000);
+        }
+        return sb.toString();
+    }
+
+    private enum Field { loop, lag, events, fanout }
+
+    private Histogram merge(Field f) {
+        Histogram h = new Histogram();
+        for (Reactor r : reactors) {
+            Metrics m = r.getMetrics();
+            switch (f) {
+                case loop: h.add(m.loopNanos); break;
+                case lag: h.add(m.lagNanos); break;
+                case events: h.add(m.eventsPerCycle); break;
+                case fanout: h.add(m.fanoutSize); break;
+            }
+        }
+        return h;
+    }
+
+    private long commandCount(Metrics.CommandType t) {
+        long n = 0;
+        for (Reactor r : reactors)
+            n += r.getMetrics().commandCounts[t.ordinal()];
+        return n;
+    }
+
+    private Histogram commandNanos(Metrics.CommandType t) {
+        Histogram h = new Histogram();
+        for (Reactor r : reactors)
+            h.add(r.getMetrics().commandNanos[t.ordinal()]);
+        return h;
+    }
+}
@@ -0,0 +1,89 @@
+package org.toastcarsten.server;
+
+/**
+ * Management interface of the ChatServer. Times are reported in microseconds,
+ * histograms as percentiles over the lifetime of the server.
+ */
+public interface ServerStatsMBean {
+
+    int getConnectedUsers();
+
+    int getLoggedInUsers();
+
+    long getLoopIterations();
+
+    long getLoopTimeP50Micros();
+
+    long getLoopTimeP99Micros();
+
+    long getLoopLagP99Micros();
+
+    double getEventsPerCycleMean();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getOutboundBacklogBytes();
+
+    long getFlushCount();
+
+    long getDroppedChatLines();
+
+    long getSkippedPresenceEvents();
+
+    /**
+     * @return number of clients disconnected for not reading fast enough
+     */
+    long getSlowConsumerEvictions();
+
+    /**
+     * @return number of times reading from a client has been paused because it sent too fast
+     */
+    long getThrottleCount();
+
+    /**
+     * @return number of connections closed right after accepting them, because their address had too many connections
+     */
+    long getRefusedConnections();
+
+    /**
+     * @return number of connections closed because they did not log in in time
+     */
+    long getLobbyTimeouts();
+
+    /**
+     * @return bytes handed to the compressors of the clients that negotiated compression
+     */
+    long getCompressionBytesIn();
+
+    /**
+     * @return bytes produced by the compressors
+     */
+    long getCompressionBytesOut();
+
+    long getCompressionCpuMicros();
+
+    long getFanoutSizeP99();
+
+    long getLoginCount();
+
+    long getMessageCount();
+
+    long getUserlistRequestCount();
+
+    long getLogoutCount();
+
+    long getLoginP99Micros();
+
+    long getMessageP99Micros();
+
+    long getUserlistRequestP99Micros();
+
+    long getLogoutP99Micros();
+
+    /**
+     * @return all values in a single line of "key=value" pairs
+     */
+    String getSummary();
+}
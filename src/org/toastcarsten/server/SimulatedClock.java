@@ -0,0 +1,49 @@
+package org.toastcarsten.server;
+
+/**
+ * A clock that only moves when it is told to, for driving a server deterministically,
+ * e.g. letting users time out without waiting for minutes.
+ */
+public class SimulatedClock implements Clock {
+
+    // nanoseconds since the epoch
+    private volatile long now;
+
+    /**
+     * Starts at the current time of the machine, so the times look plausible in logs.
+     */
+    public SimulatedClock() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * @param startMillis time to start at in milliseconds
+     */
+    public SimulatedClock(long startMillis) {
+        this.now = startMillis * 1_000_000L;
+    }
+
+    @Override
+    public long millis() {
+        return now / 1_000_000L;
+    }
+
+    @Override
+    public long nanos() {
+        return now;
+    }
+
+    /**
+     * @param millis milliseconds to move forward
+     */
+    public void advance(long millis) {
+        advanceNanos(millis * 1_000_000L);
+    }
+
+    /**
+     * @param nanos nanoseconds to move forward
+     */
+    public synchronized void advanceNanos(long nanos) {
+        now += nanos;
+    }
+}
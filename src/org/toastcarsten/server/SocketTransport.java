@@ -0,0 +1,203 @@
+package org.toastcarsten.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * TCP connections with a Selector per reactor, what the server uses unless told otherwise.
+ * The endpoints and the listener are attached to their keys, so reporting an event allocates nothing.
+ */
+public class SocketTransport implements Transport {
+
+    @Override
+    public Transport.Poller openPoller() throws IOException {
+        return new Poller(Selector.open());
+    }
+
+    @Override
+    public Transport.Listener listen(int port, int backlog, Transport.Poller poller) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(new InetSocketAddress(port), backlog);
+        Listener listener = new Listener(channel);
+        listener.key = channel.register(((Poller)poller).selector, SelectionKey.OP_ACCEPT, listener);
+        return listener;
+    }
+
+    private static class Poller implements Transport.Poller {
+        private final Selector selector;
+        private Iterator<SelectionKey> selected;
+
+        Poller(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void register(Endpoint endpoint) throws IOException {
+            SocketEndpoint e = (SocketEndpoint)endpoint;
+            e.channel.configureBlocking(false);
+            e.key = e.channel.register(selector, SelectionKey.OP_READ, e);
+        }
+
+        @Override
+        public int select(long timeoutMillis) throws IOException {
+            selected = null;
+            return selector.select(timeoutMillis);
+        }
+
+        @Override
+        public int selectNow() throws IOException {
+            selected = null;
+            return selector.selectNow();
+        }
+
+        @Override
+        public void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public Transport.Pollable next() {
+            if (selected == null)
+                selected = selector.selectedKeys().iterator();
+            if (!selected.hasNext())
+                return null;
+            SelectionKey key = selected.next();
+            selected.remove();
+            return (Transport.Pollable)key.attachment();
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+        }
+    }
+
+    private static class Listener implements Transport.Listener {
+        private final ServerSocketChannel channel;
+        private SelectionKey key;
+
+        Listener(ServerSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Endpoint accept() throws IOException {
+            SocketChannel accepted = channel.accept();
+            return accepted == null ? null : new SocketEndpoint(accepted);
+        }
+
+        @Override
+        public void setAcceptInterest(boolean on) {
+            key.interestOps(on ? SelectionKey.OP_ACCEPT : 0);
+        }
+
+        @Override
+        public int getLocalPort() {
+            return channel.socket().getLocalPort();
+        }
+
+        @Override
+        public boolean isValid() {
+            return key.isValid();
+        }
+
+        @Override
+        public boolean isAcceptable() {
+            return key.isAcceptable();
+        }
+
+        @Override
+        public void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+    }
+
+    private static class SocketEndpoint implements Endpoint {
+        private final SocketChannel channel;
+        private final InetAddress address;
+        // set once a poller took the endpoint over
+        private SelectionKey key;
+
+        SocketEndpoint(SocketChannel channel) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public void setReadInterest(boolean on) {
+            if (key == null || !key.isValid())
+                return;
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void setWriteInterest(boolean on) {
+            if (key == null || !key.isValid())
+                return;
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public boolean isValid() {
+            return key != null && key.isValid();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return key.isReadable();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return key.isWritable();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return channel.write(srcs);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (key != null)
+                key.cancel();
+            channel.close();
+        }
+    }
+}
@@ -1,21 +1,104 @@
 package org.toastcarsten.server;
 
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel that removes inactive users.
+ * It is driven by the selector loop that owns the users, so no extra threads are needed.
+ * Users are kept in intrusive lists, one per slot of the wheel, which makes scheduling and
+ * cancelling O(1). Resetting the timeout of a user does not touch the wheel at all: when the
+ * slot of a user comes up and its timeout lies in the future, it is simply moved to a later slot.
+ */
 public class TimeoutService {
+
+    private final long tickMillis;
+    private final User[] slots;
+    private final int mask;
+    private final Consumer<User> onExpire;
+    // the next tick that has not been processed yet
+    private long tick;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param slotCount number of slots, rounded up to a power of two
+     * @param now current time in milliseconds, of the clock later passed to {@link #advance(long)}
+     * @param onExpire called for every user whose timeout has passed; the user is already unscheduled
+     */
+    public TimeoutService(long tickMillis, int slotCount, long now, Consumer<User> onExpire) {
+        int n = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.slots = new User[n];
+        this.mask = n - 1;
+        this.onExpire = onExpire;
+        this.tick = now / tickMillis;
+    }
+
+    public TimeoutService(long now, Consumer<User> onExpire) {
+        // one second resolution, one revolution is longer than the default timeout
+        this(1000, 512, now, onExpire);
+    }
+
+    /**
+     * Adds a user to the wheel, according to {@link User#getTimeout()}.
+     * @param u the user to watch
+     */
+    public void schedule(User u) {
+        cancel(u);
+        // never schedule into a slot that has already been processed
+        long t = Math.max(u.getTimeout() / tickMillis, tick);
+        int slot = (int)(t & mask);
+        u.timerSlot = slot;
+        u.timerNext = slots[slot];
+        if (u.timerNext != null)
+            u.timerNext.timerPrev = u;
+        slots[slot] = u;
+        u.timer = this;
+    }
+
+    /**
+     * Removes a user from the wheel. Does nothing if the user is not scheduled.
+     * @param u the user
+     */
+    public void cancel(User u) {
+        if (u.timer != this)
+            return;
+        if (u.timerPrev != null)
+            u.timerPrev.timerNext = u.timerNext;
+        else
+            slots[u.timerSlot] = u.timerNext;
+        if (u.timerNext != null)
+            u.timerNext.timerPrev = u.timerPrev;
+        u.timerPrev = u.timerNext = null;
+        u.timer = null;
+    }
+
     /**
-     * Starts a thread that periodically checks whether or not to remove the specified user.
-     * It only wakes up when the supposed timeout of the user should happen.
-     * @param u The user to check
+     * Processes all ticks up to the given time, expiring users whose timeout has passed.
+     * @param now current time in milliseconds
+     * @return milliseconds until the next tick is due, at least 1
      */
-    public static Thread start(User u) {
-        Thread thread = new Thread(() -> {
-            long t = Long.MAX_VALUE;
-            while (t > System.currentTimeMillis()) {
-                t = u.getTimeout();
-                try { Thread.sleep(t - System.currentTimeMillis() + 1); } catch (Exception e) { return; }
+    public long advance(long now) {
+        long until = now / tickMillis;
+        // after a long pause, one revolution visits every slot
+        if (until - tick > slots.length)
+            tick = until - slots.length;
+        while (tick <= until) {
+            int slot = (int)(tick & mask);
+            // users that are not due yet get rescheduled from the following tick on
+            ++tick;
+            User u = slots[slot];
+            slots[slot] = null;
+            while (u != null) {
+                User next = u.timerNext;
+                u.timerPrev = u.timerNext = null;
+                u.timer = null;
+                if (u.getTimeout() <= now)
+                    onExpire.accept(u);
+                else
+                    schedule(u);
+                u = next;
             }
-            User.remove(u);
-        });
-        thread.start();
-        return thread;
+        }
+        return Math.max(1, tick * tickMillis - now);
     }
 }
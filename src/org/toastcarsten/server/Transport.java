@@ -0,0 +1,99 @@
+package org.toastcarsten.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the connections of a {@link ChatServer} come from: real sockets ({@link SocketTransport})
+ * or in-memory pipes driven by the caller ({@link LoopbackTransport}).
+ * The reactors only see {@link Endpoint}s and wait for them with a {@link Poller}, which behaves like a Selector.
+ */
+public interface Transport {
+
+    /**
+     * @return a new poller, every reactor has its own
+     */
+    Poller openPoller() throws IOException;
+
+    /**
+     * Starts accepting connections. The listener is reported as acceptable by the given poller.
+     * @param port port to listen on, 0 for any
+     * @param backlog connections kept waiting until they are accepted
+     * @param poller the poller of the accepting reactor
+     */
+    Listener listen(int port, int backlog, Poller poller) throws IOException;
+
+    /**
+     * Something a poller reports events for. Like a SelectionKey, the ready state is the one of the last select.
+     */
+    interface Pollable {
+        boolean isValid();
+
+        boolean isReadable();
+
+        boolean isWritable();
+
+        boolean isAcceptable();
+    }
+
+    /**
+     * Waits for events of the endpoints registered with it. Apart from {@link #wakeup()},
+     * only the thread of the owning reactor uses it.
+     */
+    interface Poller extends Closeable {
+        /**
+         * Takes over an accepted endpoint, it is reported when readable from now on.
+         * @param endpoint an endpoint returned by {@link Listener#accept()}
+         */
+        void register(Endpoint endpoint) throws IOException;
+
+        /**
+         * Waits until an event occurs, {@link #wakeup()} is called or the timeout has passed.
+         * @param timeoutMillis maximum time to wait, positive
+         * @return the number of endpoints with events
+         */
+        int select(long timeoutMillis) throws IOException;
+
+        /**
+         * @return the number of endpoints with events, without waiting
+         */
+        int selectNow() throws IOException;
+
+        /**
+         * Makes an ongoing or the next select return right away. May be called from any thread.
+         */
+        void wakeup();
+
+        /**
+         * @return the next endpoint or listener with events from the last select, null once all have been taken
+         */
+        Pollable next();
+    }
+
+    /**
+     * Accepts connections, see {@link Transport#listen(int, int, Poller)}.
+     */
+    interface Listener extends Pollable, Closeable {
+        /**
+         * @return an accepted connection that is not registered with a poller yet, or null if none is waiting
+         */
+        Endpoint accept() throws IOException;
+
+        /**
+         * @param on false to leave further connections in the backlog
+         */
+        void setAcceptInterest(boolean on);
+
+        int getLocalPort();
+
+        @Override
+        default boolean isReadable() {
+            return false;
+        }
+
+        @Override
+        default boolean isWritable() {
+            return false;
+        }
+    }
+}
@@ -1,96 +1,636 @@
 package org.toastcarsten.server;
 
+import org.toastcarsten.shared.Compression;
+import org.toastcarsten.shared.FrameDecoder;
+
 import javax.naming.NameAlreadyBoundException;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class User {
 
     // --------------- static ---------------
 
-    private static HashMap<String, User> nameMap = new HashMap<>();
-    private static HashMap<SelectionKey, User> selkeyMap = new HashMap<>();
+    // accessed by all reactors: lookups are lock-free, names are claimed atomically
+    private static ConcurrentHashMap<String, User> nameMap = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<Endpoint, User> endpointMap = new ConcurrentHashMap<>();
+    // versioned on every change of the participants, the snapshot is only rebuilt when it is outdated
+    private static final Userlist userlist = new Userlist();
+    private static volatile Snapshot participants = new Snapshot(0, new User[0]);
+    // told about the names taken and freed by the users of this node, if it is part of a cluster
+    private static volatile NameListener nameListener;
+
+    /**
+     * Receives the name changes of the users connected to this node, see {@link Cluster}.
+     * Called on the thread that made the change.
+     */
+    interface NameListener {
+        void claimed(String name);
+
+        void released(String name);
+    }
+
+    static void setNameListener(NameListener listener) {
+        nameListener = listener;
+    }
+
+    private static class Snapshot {
+        final long version;
+        final List<User> users;
+
+        Snapshot(long version, User[] users) {
+            this.version = version;
+            this.users = Collections.unmodifiableList(Arrays.asList(users));
+        }
+    }
 
     public static User get(String name) {
         return nameMap.get(name);
     }
 
-    public static User get(SelectionKey k) {
-        return selkeyMap.get(k);
+    public static User get(Endpoint e) {
+        return endpointMap.get(e);
     }
 
+    /**
+     * Returns an immutable snapshot of all logged in users.
+     * The snapshot is shared by all callers until the next login or removal,
+     * so iterating it is safe from any thread and does not block writers.
+     * @return the logged in users
+     */
     public static Collection<User> getParticipants() {
-        return nameMap.values();
+        Snapshot s = participants;
+        // read the version before copying, so a change during the copy triggers another rebuild
+        long v = userlist.version();
+        if (s.version != v) {
+            s = new Snapshot(v, nameMap.values().toArray(new User[0]));
+            participants = s;
+        }
+        return s.users;
+    }
+
+    /**
+     * @return the versioned names of the logged in users, for answering /userlist
+     */
+    public static Userlist getUserlist() {
+        return userlist;
     }
 
     public static Collection<User> getUsers() {
-        return selkeyMap.values();
+        return endpointMap.values();
     }
 
     /**
      * Close the connection to this user and remove him from the user list.
+     * Must be called on the thread of the reactor owning the user.
      * @param u the user to remove
      * @return true if a user has been found and removed, false otherwise.
      */
     public static boolean remove(User u) {
-        if (System.currentTimeMillis() < u.getTimeout()) {
-            // user is not removed because of timeout, cancel the service as well
-            u.stopTimeout();
-        }
+        u.stopTimeout();
+        try {
+            // last chance for queued messages (e.g. a goodbye) to reach the client
+            ChannelIO.flush(u);
+        } catch (IOException e) {}
+        u.discardOutbound();
+        u.endCompression();
         try {
-            u.getSelectionKey().cancel();
-            u.getChannel().close();
-            nameMap.remove(u.getName());
-            return (selkeyMap.remove(u.getSelectionKey()) != null);
+            u.getEndpoint().close();
         } catch (IOException e) {}
-        return false;
+        u.getReactor().detach(u);
+        release(u);
+        return (endpointMap.remove(u.getEndpoint()) != null);
+    }
+
+    /**
+     * Takes a user out of its rooms and frees its name. Part of removing a user, whichever server it is connected to.
+     * @param u the user whose connection is gone
+     */
+    static void release(User u) {
+        for (String room : u.getRooms())
+            Room.part(room, u);
+        String name = u.getName();
+        if (name != null && nameMap.remove(name, u)) {
+            userlist.removed(name, u);
+            NameListener l = nameListener;
+            if (l != null)
+                l.released(name);
+        }
+    }
+
+    /**
+     * Records a user logged in on another node of the cluster.
+     * @param name name of the user
+     * @param node id of the node
+     * @return false if the name is already taken on this node, which the owner of the name should have prevented
+     */
+    static boolean addRemote(String name, int node) {
+        User u = new User(name, node);
+        User owner = nameMap.putIfAbsent(name, u);
+        if (owner != null)
+            return owner.node == node;
+        userlist.added(name, u);
+        return true;
+    }
+
+    /**
+     * Forgets a user that logged out on another node of the cluster.
+     * @param name name of the user
+     * @param node id of the node
+     */
+    static void removeRemote(String name, int node) {
+        User u = nameMap.get(name);
+        if (u != null && u.node == node && nameMap.remove(name, u))
+            userlist.removed(name, u);
+    }
+
+    /**
+     * Forgets all users of a node that left the cluster.
+     * @param node id of the node
+     * @return names of the users
+     */
+    static List<String> removeNode(int node) {
+        List<String> names = new ArrayList<>();
+        for (User u : nameMap.values()) {
+            if (u.node == node && nameMap.remove(u.name, u)) {
+                userlist.removed(u.name, u);
+                names.add(u.name);
+            }
+        }
+        return names;
     }
 
     // --------------- non-static ---------------
 
-    private String name = null;
-    private SelectionKey key;
+    // read by other reactors while iterating the participants
+    private volatile String name = null;
+    private Endpoint endpoint;
+    private Reactor reactor;
+    // counted against the connections per address until the user is detached
+    private InetAddress address;
+    // position in the user list of the reactor
+    int reactorIndex = -1;
     private long timeout;
-    private Thread timeoutservice;
+    // bookkeeping of the TimeoutService this user is scheduled in
+    TimeoutService timer;
+    User timerPrev;
+    User timerNext;
+    int timerSlot;
+    private final FrameDecoder decoder = ChannelIO.newDecoder();
+    // rooms this user is a member of, plain messages go to the active one
+    private final ArrayList<String> rooms = new ArrayList<>();
+    private String activeRoom = null;
+    // set once the first bytes of the connection told whether the client speaks text or binary
+    private boolean negotiated = false;
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    // kind of every message in outbound, in the same order
+    private final ArrayDeque<Frame.Kind> outboundKinds = new ArrayDeque<>();
+    private long outboundBytes = 0;
+    // behind since the outbound queue passed the high watermark, until it drained below the low one
+    private boolean congested = false;
+    private boolean evicted = false;
+    // set if the client negotiated compression, only the last unsealed messages of the outbound queue are not compressed yet
+    private Compression.Encoder compressor = null;
+    private int unsealed = 0;
+    // mirrors the write interest of the endpoint, which is only registered while the socket is full
+    private boolean writeInterest = false;
+    // set while the user is in the flush list of its reactor
+    boolean dirty = false;
+    // flood protection, null if not limited
+    private RateLimiter commandLimiter;
+    private RateLimiter byteLimiter;
+    // the read interest is dropped while the user is over its budget, until resumeAt (Clock.nanos() of the reactor)
+    private boolean readPaused = false;
+    long resumeAt;
+    // set once the user has been told it is rate limited, until it gets back under its budget
+    private boolean rateLimited = false;
+
+    // set instead of endpoint and reactor if the user is served by a BlockingServer
+    private BlockingServer.Connection connection;
+    // id of the node of the cluster the user is connected to, if it is not this one
+    private int node = -1;
+    // set while the owner of the name this user asked for has not answered yet
+    private boolean loginPending = false;
 
-    public User(SelectionKey key) {
-        this.key = key;
-        User.selkeyMap.put(key, this);
-        // start timeout service
-        this.resetTimeout();
-        this.timeoutservice = TimeoutService.start(this);
+    /**
+     * Creates the stand-in for a user of another node, it only occupies the name.
+     * @param name name of the user
+     * @param node id of the node the user is connected to
+     */
+    private User(String name, int node) {
+        this.name = name;
+        this.node = node;
+    }
+
+    /**
+     * Creates a user served by a {@link BlockingServer}, it shares the names and rooms with reactor users.
+     * @param connection the threads reading from and writing to the user
+     */
+    User(BlockingServer.Connection connection) {
+        this.connection = connection;
+    }
+
+    public User(Endpoint endpoint, Reactor reactor) {
+        this.endpoint = endpoint;
+        this.reactor = reactor;
+        this.address = endpoint.getAddress();
+        User.endpointMap.put(endpoint, this);
+        // in the lobby until the login, which has to happen soon
+        this.timeout = reactor.getClock().millis() + reactor.getLoginTimeout();
+        reactor.getTimeouts().schedule(this);
     }
 
     public void setName(String name) throws NameAlreadyBoundException {
-        // if this.name == null, the user is new: remap
-        if (this.name != null)
-            User.nameMap.remove(this.name);
+        // claim the new name first, so a failed rename keeps the old one
         // if there's a user with that name, putIfAbsent() will return that user
-        if (nameMap.putIfAbsent(name, this) != null)
+        User owner = nameMap.putIfAbsent(name, this);
+        if (owner == this)
+            return;
+        if (owner != null)
             throw new NameAlreadyBoundException("The given username is taken!");
+        // if this.name == null, the user is new: nothing to release
+        String old = this.name;
+        if (old != null)
+            nameMap.remove(old, this);
         this.name = name;
+        // out of the lobby, from now on only inactivity counts
+        if (old == null)
+            resetTimeout();
+        userlist.added(name, this);
+        if (old != null)
+            userlist.removed(old, this);
+        NameListener l = nameListener;
+        if (l != null) {
+            l.claimed(name);
+            if (old != null)
+                l.released(old);
+        }
     }
 
     public String getName() {
         return name;
     }
 
-    public SelectionKey getSelectionKey() {
-        return key;
+    /**
+     * @return the connection of the user, null for users not served by a reactor
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the reactor serving this user
+     */
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * @return the address the user connected from, null for users not served by a reactor
+     */
+    public InetAddress getAddress() {
+        return address;
     }
 
-    public SocketChannel getChannel() {
-        return (SocketChannel)getSelectionKey().channel();
+    /**
+     * @return true if the user is connected to another node of the cluster, it cannot be written to from here
+     */
+    public boolean isRemote() {
+        return node >= 0;
+    }
+
+    public boolean isLoginPending() {
+        return loginPending;
+    }
+
+    public void setLoginPending(boolean pending) {
+        loginPending = pending;
+    }
+
+    /**
+     * @return the connection of a user served by a BlockingServer, null for reactor users
+     */
+    public BlockingServer.Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the decoder holding the partially received frames of this user
+     */
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * @return names of the rooms this user is a member of
+     */
+    public List<String> getRooms() {
+        return rooms;
+    }
+
+    /**
+     * @return the room plain messages of this user go to, or null for everyone
+     */
+    public String getActiveRoom() {
+        return activeRoom;
+    }
+
+    /**
+     * Records that the user is a member of a room and makes it the active room.
+     * @param room name of the room
+     */
+    public void addRoom(String room) {
+        if (!rooms.contains(room))
+            rooms.add(room);
+        activeRoom = room;
+    }
+
+    /**
+     * Records that the user left a room. If it was the active room, the most recently joined room becomes active.
+     * @param room name of the room
+     * @return true if the user was a member of the room
+     */
+    public boolean removeRoom(String room) {
+        if (!rooms.remove(room))
+            return false;
+        if (room.equals(activeRoom))
+            activeRoom = rooms.isEmpty() ? null : rooms.get(rooms.size() - 1);
+        return true;
+    }
+
+    /**
+     * @return true while the user is registered with its reactor, i.e. has not been removed
+     */
+    public boolean isAttached() {
+        return reactorIndex >= 0;
+    }
+
+    /**
+     * @return true if this user speaks the binary protocol, see {@link org.toastcarsten.shared.BinaryCodec}
+     */
+    public boolean isBinary() {
+        return decoder.isBinary();
+    }
+
+    public boolean isNegotiated() {
+        return negotiated;
+    }
+
+    public void setNegotiated() {
+        negotiated = true;
+    }
+
+    public Compression.Encoder getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Turns on compression, for everything queued from now on.
+     * @param compressor the encoder holding the deflate stream of this user
+     */
+    public void setCompressor(Compression.Encoder compressor) {
+        this.compressor = compressor;
+        unsealed = 0;
+    }
+
+    /**
+     * Frees the deflate stream of this user, if there is one.
+     */
+    public void endCompression() {
+        if (compressor != null)
+            compressor.end();
+        compressor = null;
+    }
+
+    /**
+     * Compresses everything queued since the last call, so it can be written.
+     * Messages queued in one cycle of the reactor end up in the same block, which compresses better than single messages.
+     */
+    void sealOutbound() {
+        int n = unsealed;
+        if (compressor == null || n == 0)
+            return;
+        ByteBuffer[] pending = new ByteBuffer[n];
+        for (int i = n - 1; i >= 0; --i) {
+            pending[i] = outbound.pollLast();
+            outboundKinds.pollLast();
+        }
+        long before = 0;
+        for (ByteBuffer buf : pending)
+            before += buf.remaining();
+        long start = System.nanoTime();
+        List<ByteBuffer> blocks = compressor.encode(pending, n);
+        long after = 0;
+        for (ByteBuffer buf : blocks) {
+            after += buf.remaining();
+            outbound.add(buf);
+            // a block may hold chat lines, but it cannot be taken apart any more
+            outboundKinds.add(Frame.Kind.Control);
+        }
+        outboundBytes += after - before;
+        Metrics metrics = reactor.getMetrics();
+        metrics.recordCompression(before, after, System.nanoTime() - start);
+        // the backlog now holds the compressed bytes
+        metrics.recordDequeued(before, false);
+        metrics.recordQueued((int)after);
+        unsealed = 0;
+    }
+
+    /**
+     * @return the messages that still have to be written to this user
+     */
+    public Deque<ByteBuffer> getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Appends a message that is always delivered to the outbound queue, see {@link #queue(ByteBuffer, Frame.Kind)}.
+     * @param buf the encoded message
+     */
+    public void queue(ByteBuffer buf) {
+        queue(buf, Frame.Kind.Control);
+    }
+
+    /**
+     * Appends a message to the outbound queue. The queue is written at the end of the current cycle of the reactor,
+     * or when the selector reports that the socket takes more data again.
+     * @param buf the encoded message
+     * @param kind what the message is for, chat lines may be dropped later on
+     */
+    public void queue(ByteBuffer buf, Frame.Kind kind) {
+        reactor.getMetrics().recordQueued(buf.remaining());
+        outbound.add(buf);
+        outboundKinds.add(kind);
+        outboundBytes += buf.remaining();
+        if (compressor != null)
+            ++unsealed;
+        // while the write interest is registered, writing before the socket is ready would be pointless
+        if (!writeInterest)
+            reactor.markDirty(this);
+    }
+
+    /**
+     * Updates the bookkeeping after messages have been written from the head of the outbound queue.
+     * @param count number of messages that have been removed
+     * @param bytes number of bytes written
+     */
+    void dequeued(int count, long bytes) {
+        for (int i = 0; i < count; ++i)
+            outboundKinds.poll();
+        outboundBytes -= bytes;
+        if (congested && reactor.getBackpressure().drained(outboundBytes))
+            congested = false;
+    }
+
+    /**
+     * Applies the slow consumer policy before a frame is queued for this user, see {@link Backpressure}.
+     * @param f the frame about to be queued
+     * @return true if the frame should be queued
+     */
+    boolean admit(Frame f) {
+        if (evicted)
+            return false;
+        Reactor r = reactor;
+        Metrics metrics = r.getMetrics();
+        Backpressure bp = r.getBackpressure();
+        boolean over = bp.over(outboundBytes, f.length(), metrics.outboundBacklog);
+        if (over)
+            congested = true;
+        if (!congested)
+            return true;
+        switch (bp.admit(f.getKind(), outboundBytes, f.length(), over, this::dropOldestChat)) {
+            case Shed:
+                metrics.recordShed(f.getKind());
+                return false;
+            case Disconnect:
+                evicted = true;
+                r.evict(this);
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Drops unsent chat lines, oldest first, until the outbound queue is small enough.
+     * @param target number of bytes the queue may hold afterwards
+     * @return true if the target has been reached
+     */
+    private boolean dropOldestChat(long target) {
+        Metrics metrics = reactor.getMetrics();
+        Iterator<ByteBuffer> bufs = outbound.iterator();
+        Iterator<Frame.Kind> kinds = outboundKinds.iterator();
+        boolean head = true;
+        while (outboundBytes > target && bufs.hasNext()) {
+            ByteBuffer buf = bufs.next();
+            Frame.Kind kind = kinds.next();
+            // the head may be partially written, removing it would corrupt the stream
+            boolean started = head && buf.position() > 0;
+            head = false;
+            if (kind != Frame.Kind.Chat || started)
+                continue;
+            bufs.remove();
+            kinds.remove();
+            outboundBytes -= buf.remaining();
+            // chat lines are never sealed, so the dropped one was counted there
+            if (compressor != null)
+                --unsealed;
+            metrics.recordDequeued(buf.remaining(), false);
+            metrics.recordShed(kind);
+        }
+        return outboundBytes <= target;
+    }
+
+    public boolean hasWriteInterest() {
+        return writeInterest;
+    }
+
+    /**
+     * Drops everything that has not been written yet.
+     */
+    public void discardOutbound() {
+        long bytes = 0;
+        for (ByteBuffer buf : outbound)
+            bytes += buf.remaining();
+        outbound.clear();
+        outboundKinds.clear();
+        outboundBytes = 0;
+        unsealed = 0;
+        reactor.getMetrics().recordDequeued(bytes, false);
+    }
+
+    /**
+     * Registers or deregisters interest in writability for this user.
+     * @param on true if there is something to write
+     */
+    public void setWriteInterest(boolean on) {
+        if (writeInterest == on || !endpoint.isValid())
+            return;
+        writeInterest = on;
+        endpoint.setWriteInterest(on);
+    }
+
+    public RateLimiter getCommandLimiter() {
+        return commandLimiter;
+    }
+
+    public RateLimiter getByteLimiter() {
+        return byteLimiter;
+    }
+
+    /**
+     * @param commands limits the commands per second, or null
+     * @param bytes limits the received bytes per second, or null
+     */
+    public void setRateLimiters(RateLimiter commands, RateLimiter bytes) {
+        commandLimiter = commands;
+        byteLimiter = bytes;
+    }
+
+    public boolean isRateLimited() {
+        return rateLimited;
+    }
+
+    public void setRateLimited(boolean limited) {
+        rateLimited = limited;
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * Deregisters or registers interest in readability for this user. While reading is paused,
+     * unread input stays in the socket buffer and TCP slows the client down.
+     * @param paused true to stop reading
+     */
+    public void setReadPaused(boolean paused) {
+        if (readPaused == paused || !endpoint.isValid())
+            return;
+        readPaused = paused;
+        endpoint.setReadInterest(!paused);
     }
 
     /**
-     * Resets the "inactive-timer" on this user to 5 Minutes from now
+     * Resets the "inactive-timer" on this user to 5 Minutes from now.
+     * The TimeoutService picks up the new value when the old one comes up, so this is just a field write.
+     * Users in the lobby keep their login deadline, sending anything but a login does not help them.
      */
     public void resetTimeout() {
-        timeout = System.currentTimeMillis() + 300000;
+        if (name == null)
+            return;
+        // users of a BlockingServer have no reactor and go by the wall clock
+        timeout = (reactor == null ? System.currentTimeMillis() : reactor.getClock().millis()) + 300000;
     }
 
     public long getTimeout() {
@@ -101,6 +641,7 @@ public class User {
      * Stops the timeout service for this user.
      */
     public void stopTimeout() {
-        this.timeoutservice.interrupt();
+        if (timer != null)
+            timer.cancel(this);
     }
 }
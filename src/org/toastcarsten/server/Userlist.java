@@ -0,0 +1,127 @@
+package org.toastcarsten.server;
+
+import org.toastcarsten.shared.IServer;
+import org.toastcarsten.shared.Protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The names of all logged in users, with a version that is bumped by every login and logout.
+ * A client that already knows the list of some version only gets the names added and removed since then.
+ * Everyone else gets the full list, split into pages that are encoded once per version and shared by all requests.
+ *
+ * Recent changes are kept in a ring, a client too far behind gets the full list as well.
+ */
+public class Userlist {
+
+    // a page stays well below the frame limit of the clients
+    static final int PAGE_BYTES = 32 * 1024;
+    private static final int LOG_SIZE = 64 * 1024;
+
+    // only used to format the answers, never executes commands
+    private static final Protocol formatter = new Protocol((IServer)null);
+
+    // the holder of every name, so a logout reported after the next login of the same name is recognized as outdated
+    private final HashMap<String, Object> names = new HashMap<>();
+    private volatile long version = 0;
+    // change i is at i % LOG_SIZE
+    private final String[] logNames = new String[LOG_SIZE];
+    private final boolean[] logAdded = new boolean[LOG_SIZE];
+    // pages of the full list, built for pagesVersion
+    private long pagesVersion = -1;
+    private List<Frame> pages;
+
+    /**
+     * @return the version of the current list, 0 for the empty list of a fresh server
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Records a login.
+     * @param name the name that has been taken
+     * @param holder the user holding it
+     */
+    public synchronized void added(String name, Object holder) {
+        if (names.put(name, holder) == null)
+            log(name, true);
+    }
+
+    /**
+     * Records a logout.
+     * @param name the name that has been freed
+     * @param holder the user that held it
+     */
+    public synchronized void removed(String name, Object holder) {
+        if (names.remove(name, holder))
+            log(name, false);
+    }
+
+    private void log(String name, boolean added) {
+        long v = version + 1;
+        int i = (int)(v % LOG_SIZE);
+        logNames[i] = name;
+        logAdded[i] = added;
+        version = v;
+    }
+
+    /**
+     * @param since the version the client has, or -1 if it has none
+     * @return the frames to send: a single line with the changes since that version if it is recent enough
+     *         and the changes are fewer than the names, otherwise all pages of the full list
+     */
+    public synchronized List<Frame> answer(long since) {
+        long v = version;
+        if (since >= 0 && since <= v && v - since < LOG_SIZE) {
+            // names changed an even number of times are back where they were
+            Map<String, Boolean> changes = new LinkedHashMap<>();
+            int bytes = 0;
+            for (long i = since + 1; i <= v && bytes < PAGE_BYTES; ++i) {
+                int slot = (int)(i % LOG_SIZE);
+                String name = logNames[slot];
+                if (changes.remove(name) == null) {
+                    changes.put(name, logAdded[slot]);
+                    bytes += name.length() + 2;
+                }
+            }
+            if (bytes < PAGE_BYTES && changes.size() <= names.size()) {
+                List<String> added = new ArrayList<>();
+                List<String> removed = new ArrayList<>();
+                for (Map.Entry<String, Boolean> c : changes.entrySet())
+                    (c.getValue() ? added : removed).add(c.getKey());
+                return Collections.singletonList(Frame.of(formatter.new UserlistAnswer(since, v, added, removed).toString()));
+            }
+        }
+        if (pagesVersion != v) {
+            pages = paginate(v);
+            pagesVersion = v;
+        }
+        return pages;
+    }
+
+    private List<Frame> paginate(long v) {
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        int bytes = 0;
+        for (String name : names.keySet()) {
+            if (bytes + name.length() + 2 > PAGE_BYTES && !group.isEmpty()) {
+                groups.add(group);
+                group = new ArrayList<>();
+                bytes = 0;
+            }
+            group.add(name);
+            bytes += name.length() + 2;
+        }
+        groups.add(group);
+        List<Frame> frames = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); ++i)
+            frames.add(Frame.of(formatter.new UserlistAnswer(v, i + 1, groups.size(), groups.get(i)).toString()));
+        return Collections.unmodifiableList(frames);
+    }
+}
@@ -0,0 +1,473 @@
+package org.toastcarsten.shared;
+
+import org.toastcarsten.errors.CommandNotFoundException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary wire format, an alternative to the newline terminated text protocol.
+ * A client selects it by sending {@link #HELLO} as the very first byte of a connection,
+ * the server confirms by sending the same byte back.
+ *
+ * Every frame is a varint length followed by that many bytes: a one byte opcode and the fields of the command.
+ * Strings are a varint byte count followed by UTF-8, enums are a single byte holding the ordinal.
+ * Since frames are not delimited by newlines, messages may contain line breaks.
+ */
+public class BinaryCodec {
+
+    /** Not a valid first byte of UTF-8 text, so it cannot be confused with a text command. */
+    public static final byte HELLO = (byte)0xFE;
+
+    // --------------- Client Opcodes ---------------
+    static final byte
+            LOGIN =             0x01,
+            LOGOUT =            0x02,
+            USERLIST_REQUEST =  0x03,
+            MESSAGE =           0x04,
+            STATS_REQUEST =     0x05,
+            JOIN =              0x06,
+            PART =              0x07;
+
+    // --------------- Server Opcodes ---------------
+    static final byte
+            ERROR =             0x41,
+            USERLEFT =          0x42,
+            USERJOINED =        0x43,
+            USERTIMEOUT =       0x44,
+            USERLIST =          0x45,
+            REDIRECTED =        0x46,
+            SERVER =            0x47,
+            WELCOME =           0x48,
+            USERLIST_PAGE =     0x49,
+            USERLIST_DELTA =    0x4A,
+            // several users joined or left at about the same time
+            USERS_JOINED =      0x4B,
+            USERS_LEFT =        0x4C,
+            // a text line the server has no structured form for
+            RAW =               0x7F;
+
+    /**
+     * Encodes a command as a complete binary frame, including the length prefix.
+     * @param c the command
+     * @return the frame
+     */
+    public static byte[] encode(Protocol.Command c) {
+        Writer w = new Writer();
+        if (c instanceof Protocol.Login) {
+            w.op(LOGIN).str(c.args);
+        } else if (c instanceof Protocol.Logout) {
+            w.op(LOGOUT);
+        } else if (c instanceof Protocol.UserlistRequest) {
+            w.op(USERLIST_REQUEST);
+            // the room or the version the client has is optional
+            if (!c.args.isEmpty())
+                w.str(c.args);
+        } else if (c instanceof Protocol.Join) {
+            w.op(JOIN).str(c.args);
+        } else if (c instanceof Protocol.Part) {
+            w.op(PART).str(c.args);
+        } else if (c instanceof Protocol.Message) {
+            w.op(MESSAGE).str(c.args);
+        } else if (c instanceof Protocol.StatsRequest) {
+            w.op(STATS_REQUEST);
+        } else if (c instanceof Protocol.ErrorMessage) {
+            w.op(ERROR).b(((Protocol.ErrorMessage)c).error.ordinal());
+        } else if (c instanceof Protocol.UserLeft) {
+            Protocol.UserLeft ul = (Protocol.UserLeft)c;
+            if (ul.names.size() == 1)
+                w.op(USERLEFT).str(ul.names.get(0)).b(ul.reason.ordinal());
+            else
+                w.op(USERS_LEFT).names(ul.names).b(ul.reason.ordinal());
+        } else if (c instanceof Protocol.UserJoined) {
+            List<String> names = ((Protocol.UserJoined)c).names;
+            if (names.size() == 1)
+                w.op(USERJOINED).str(names.get(0));
+            else
+                w.op(USERS_JOINED).names(names);
+        } else if (c instanceof Protocol.UserTimeout) {
+            w.op(USERTIMEOUT);
+        } else if (c instanceof Protocol.UserlistAnswer) {
+            Protocol.UserlistAnswer ua = (Protocol.UserlistAnswer)c;
+            if (ua.removed != null)
+                w.op(USERLIST_DELTA).varlong(ua.since).varlong(ua.version).names(ua.users).names(ua.removed);
+            else if (ua.version >= 0)
+                w.op(USERLIST_PAGE).varlong(ua.version).varint(ua.page).varint(ua.pages).names(ua.users);
+            else
+                w.op(USERLIST).names(ua.users);
+        } else if (c instanceof Protocol.RedirectedMessage) {
+            Protocol.RedirectedMessage rm = (Protocol.RedirectedMessage)c;
+            w.op(REDIRECTED).str(rm.user).str(rm.message);
+        } else if (c instanceof Protocol.ServerMessage) {
+            w.op(SERVER).str(c.args);
+        } else if (c instanceof Protocol.Welcome) {
+            w.op(WELCOME).str(((Protocol.Welcome)c).name);
+        } else {
+            w.op(RAW).str(c.toString());
+        }
+        return w.frame();
+    }
+
+    /**
+     * Translates a text line sent by the server into a binary frame.
+     * Lines that are not a server command are passed on as raw text.
+     * @param p protocol used to parse the line
+     * @param line the text line, without line terminator
+     * @return the frame
+     */
+    public static byte[] translate(Protocol p, String line) {
+        try {
+            return encode(p.parseServer(line));
+        } catch (CommandNotFoundException e) {
+            return new Writer().op(RAW).str(line).frame();
+        }
+    }
+
+    /**
+     * Decodes the body of a binary client frame, i.e. a frame returned by a binary FrameDecoder.
+     * @param p protocol the command is bound to
+     * @param buf buffer holding the frame body
+     * @param off offset of the body
+     * @param len length of the body
+     * @return the command
+     * @throws CommandNotFoundException if the opcode is unknown or the fields are malformed
+     */
+    public static Protocol.ClientCommand decodeClient(Protocol p, byte[] buf, int off, int len) throws CommandNotFoundException {
+        Reader r = new Reader(buf, off, len);
+        try {
+            switch (r.op()) {
+                case LOGIN: {
+                    String name = r.name();
+                    if (name != null && r.done())
+                        return p.new Login(name);
+                    break;
+                }
+                case LOGOUT:
+                    if (r.done())
+                        return p.logout;
+                    break;
+                case USERLIST_REQUEST: {
+                    if (r.done())
+                        return p.userlistRequest;
+                    // a room, or the version of the list the client has
+                    byte[] arg = r.str().getBytes(StandardCharsets.UTF_8);
+                    if (!r.done())
+                        break;
+                    if (Protocol.isRoom(arg, 0, arg.length))
+                        return p.new UserlistRequest(new String(arg, StandardCharsets.US_ASCII));
+                    long since = Protocol.parseVersion(arg, 0, arg.length);
+                    if (since >= 0)
+                        return p.new UserlistRequest(since);
+                    break;
+                }
+                case JOIN: {
+                    String room = r.room();
+                    if (room != null && r.done())
+                        return p.new Join(room);
+                    break;
+                }
+                case PART: {
+                    String room = r.str();
+                    if ((room.isEmpty() || Protocol.isRoom(room.getBytes(StandardCharsets.US_ASCII), 0, room.length())) && r.done())
+                        return p.new Part(room);
+                    break;
+                }
+                case STATS_REQUEST:
+                    if (r.done())
+                        return p.statsRequest;
+                    break;
+                case MESSAGE: {
+                    String text = r.str();
+                    if (!text.isEmpty() && r.done())
+                        return p.new Message(text);
+                    break;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // field lengths point past the end of the frame, handled below
+        }
+        throw new CommandNotFoundException("The given binary command could not be evaluated: " + Arrays.toString(Arrays.copyOfRange(buf, off, off + Math.min(len, 16))));
+    }
+
+    /**
+     * Decodes the body of a binary server frame.
+     * Raw text lines are handed to {@link Protocol#parseServer(String)}.
+     * @param p protocol the command is bound to
+     * @param buf buffer holding the frame body
+     * @param off offset of the body
+     * @param len length of the body
+     * @return the command
+     * @throws CommandNotFoundException if the opcode is unknown or the fields are malformed
+     */
+    public static Protocol.ServerCommand decodeServer(Protocol p, byte[] buf, int off, int len) throws CommandNotFoundException {
+        Reader r = new Reader(buf, off, len);
+        try {
+            Protocol.ServerCommand c = null;
+            switch (r.op()) {
+                case ERROR: {
+                    int e = r.b();
+                    if (e < Protocol.Error.values().length)
+                        c = p.new ErrorMessage(Protocol.Error.values()[e]);
+                    break;
+                }
+                case USERLEFT: {
+                    String name = r.name();
+                    int reason = r.b();
+                    if (name != null && reason < Protocol.Reason.values().length)
+                        c = p.new UserLeft(name, Protocol.Reason.values()[reason]);
+                    break;
+                }
+                case USERJOINED: {
+                    String name = r.name();
+                    if (name != null)
+                        c = p.new UserJoined(name);
+                    break;
+                }
+                case USERS_LEFT: {
+                    List<String> names = r.names();
+                    int reason = r.b();
+                    if (!names.isEmpty() && reason < Protocol.Reason.values().length)
+                        c = p.new UserLeft(names, Protocol.Reason.values()[reason]);
+                    break;
+                }
+                case USERS_JOINED: {
+                    List<String> names = r.names();
+                    if (!names.isEmpty())
+                        c = p.new UserJoined(names);
+                    break;
+                }
+                case USERTIMEOUT:
+                    c = p.new UserTimeout();
+                    break;
+                case USERLIST:
+                    c = p.new UserlistAnswer(r.names());
+                    break;
+                case USERLIST_PAGE: {
+                    long version = r.varlong();
+                    int page = r.varint();
+                    int pages = r.varint();
+                    c = p.new UserlistAnswer(version, page, pages, r.names());
+                    break;
+                }
+                case USERLIST_DELTA: {
+                    long since = r.varlong();
+                    long version = r.varlong();
+                    List<String> added = r.names();
+                    c = p.new UserlistAnswer(since, version, added, r.names());
+                    break;
+                }
+                case REDIRECTED: {
+                    String user = r.str();
+                    c = p.new RedirectedMessage(user, r.str());
+                    break;
+                }
+                case SERVER:
+                    c = p.new ServerMessage(r.str());
+                    break;
+                case WELCOME:
+                    c = p.new Welcome(r.str());
+                    break;
+                case RAW:
+                    c = (Protocol.ServerCommand)p.parseServer(r.str());
+                    break;
+            }
+            if (c != null && r.done())
+                return c;
+        } catch (IndexOutOfBoundsException e) {
+            // field lengths point past the end of the frame, handled below
+        }
+        throw new CommandNotFoundException("The given binary command could not be evaluated: " + Arrays.toString(Arrays.copyOfRange(buf, off, off + Math.min(len, 16))));
+    }
+
+    /**
+     * Reads the varint length prefix of a frame.
+     * @param buf buffer holding the prefix
+     * @param off offset of the prefix
+     * @param avail number of bytes available from off
+     * @return the length in the lower 32 bits and the size of the prefix in the upper 32 bits,
+     *         or -1 if the prefix is incomplete, longer than 5 bytes or the length does not fit in a non-negative int
+     */
+    public static long readLength(byte[] buf, int off, int avail) {
+        int value = 0;
+        for (int i = 0; i < 5 && i < avail; ++i) {
+            int b = buf[off + i] & 0xFF;
+            // the fifth byte carries bits 28 to 34, only 28 to 30 are left for a non-negative int
+            if (i == 4 && (b & 0x78) != 0)
+                return -1;
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                return ((long)(i + 1) << 32) | (value & 0xFFFFFFFFL);
+        }
+        return -1;
+    }
+
+    // --------------- Field Encoding ---------------
+
+    private static class Writer {
+        private byte[] buf = new byte[64];
+        // room for the largest length prefix, the frame is moved to its start at the end
+        private int pos = 5;
+
+        Writer op(byte op) {
+            return b(op);
+        }
+
+        Writer b(int v) {
+            ensure(1);
+            buf[pos++] = (byte)v;
+            return this;
+        }
+
+        Writer varint(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte)v;
+            return this;
+        }
+
+        Writer varlong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte)v;
+            return this;
+        }
+
+        /**
+         * A count followed by the names.
+         */
+        Writer names(Collection<String> names) {
+            varint(names.size());
+            for (String name : names)
+                str(name);
+            return this;
+        }
+
+        Writer str(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+            return this;
+        }
+
+        byte[] frame() {
+            int len = pos - 5;
+            int prefix = 1;
+            for (int v = len >>> 7; v != 0; v >>>= 7)
+                ++prefix;
+            int start = 5 - prefix;
+            int p = start;
+            int v = len;
+            while ((v & ~0x7F) != 0) {
+                buf[p++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[p] = (byte)v;
+            return Arrays.copyOfRange(buf, start, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+        }
+
+        int op() {
+            return b();
+        }
+
+        int b() {
+            if (pos >= end)
+                throw new IndexOutOfBoundsException();
+            return buf[pos++] & 0xFF;
+        }
+
+        int varint() {
+            long l = readLength(buf, pos, end - pos);
+            if (l < 0 || (int)l < 0)
+                throw new IndexOutOfBoundsException();
+            pos += (int)(l >>> 32);
+            return (int)l;
+        }
+
+        long varlong() {
+            long value = 0;
+            for (int i = 0; i < 10; ++i) {
+                int b = b();
+                value |= (long)(b & 0x7F) << (7 * i);
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        /**
+         * @return the names following a count
+         */
+        List<String> names() {
+            int n = varint();
+            List<String> names = new ArrayList<>(Math.min(n, end - pos));
+            for (int i = 0; i < n; ++i)
+                names.add(str());
+            return names;
+        }
+
+        String str() {
+            int n = varint();
+            if (n > end - pos)
+                throw new IndexOutOfBoundsException();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        /**
+         * @return a valid username, or null if the field is not one
+         */
+        String name() {
+            int n = varint();
+            if (n > end - pos)
+                throw new IndexOutOfBoundsException();
+            String s = Protocol.isName(buf, pos, n) ? new String(buf, pos, n, StandardCharsets.US_ASCII) : null;
+            pos += n;
+            return s;
+        }
+
+        /**
+         * @return a valid room name, or null if the field is not one
+         */
+        String room() {
+            int n = varint();
+            if (n > end - pos)
+                throw new IndexOutOfBoundsException();
+            String s = Protocol.isRoom(buf, pos, n) ? new String(buf, pos, n, StandardCharsets.US_ASCII) : null;
+            pos += n;
+            return s;
+        }
+
+        boolean done() {
+            return pos == end;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.toastcarsten.shared;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class BufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    /**
+     * Creates a pool of direct buffers.
+     * @param bufferSize capacity of every buffer handed out by this pool
+     * @param capacity maximum number of idle buffers kept around
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, or allocates a new one if the pool is empty.
+     * @return a direct buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were not handed out by a pool of this size,
+     * as well as read-only views, are ignored. If the pool is full, the buffer is dropped.
+     * @param buf the buffer to return
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.isReadOnly() || buf.capacity() != bufferSize)
+            return;
+        buf.clear();
+        free.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
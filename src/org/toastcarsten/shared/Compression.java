@@ -0,0 +1,203 @@
+package org.toastcarsten.shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of everything the server sends on a connection.
+ * A client asks for it by sending {@link #HELLO} as the very first byte of the connection, before the binary HELLO if any.
+ * The server confirms by sending the same byte back, everything after it arrives in blocks.
+ *
+ * A block is a flag byte, a varint length and that many bytes. With {@link #RAW} the bytes are plain protocol data,
+ * with {@link #DEFLATE} they are raw deflate data ending in a sync flush, so every block can be inflated on arrival.
+ * All deflated blocks of a connection form a single stream, later blocks refer back to earlier ones.
+ * The server sends small blocks raw, compressing them would cost more than it saves.
+ */
+public class Compression {
+
+    /** Neither valid UTF-8 nor the binary HELLO. */
+    public static final byte HELLO = (byte)0xFD;
+
+    static final byte RAW = 0, DEFLATE = 1;
+
+    // maximum uncompressed size of a block, so clients never have to hold huge blocks
+    private static final int MAX_BLOCK_INPUT = 64 * 1024;
+    // flag byte and the longest varint
+    private static final int MAX_HEADER = 6;
+
+    /**
+     * Server side, keeps the deflate stream of one connection.
+     * Not thread-safe, and {@link #end()} must be called when the connection is closed to free the native memory.
+     */
+    public static class Encoder {
+
+        private final int level;
+        private final int threshold;
+        // created with the first block worth compressing, a connection that never gets one never holds the native memory
+        private Deflater deflater;
+        // reused between calls, only the finished blocks are copied out
+        private byte[] in;
+        private byte[] out;
+
+        /**
+         * @param level deflate level between 1 (fastest) and 9 (smallest)
+         * @param threshold blocks with fewer bytes are sent raw
+         */
+        public Encoder(int level, int threshold) {
+            this.level = level;
+            this.threshold = threshold;
+        }
+
+        /**
+         * Turns frames into blocks. The frames are consumed, raw blocks may keep referring to them.
+         * @param frames encoded protocol data, in the order it is to be sent
+         * @param count number of frames to take from the array
+         * @return the blocks in wire format
+         */
+        public List<ByteBuffer> encode(ByteBuffer[] frames, int count) {
+            List<ByteBuffer> blocks = new ArrayList<>();
+            int first = 0;
+            while (first < count) {
+                // a block covers as many frames as fit, but at least one
+                int total = frames[first].remaining();
+                int last = first + 1;
+                while (last < count && total + frames[last].remaining() <= MAX_BLOCK_INPUT)
+                    total += frames[last++].remaining();
+                if (total < threshold) {
+                    blocks.add(header(RAW, total));
+                    for (int i = first; i < last; ++i)
+                        blocks.add(frames[i]);
+                } else {
+                    blocks.add(deflate(frames, first, last, total));
+                }
+                first = last;
+            }
+            return blocks;
+        }
+
+        private ByteBuffer deflate(ByteBuffer[] frames, int first, int last, int total) {
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+                in = new byte[4096];
+                out = new byte[4096];
+            }
+            if (in.length < total)
+                in = new byte[Math.max(in.length * 2, total)];
+            int pos = 0;
+            for (int i = first; i < last; ++i) {
+                ByteBuffer b = frames[i];
+                int n = b.remaining();
+                b.get(in, pos, n);
+                pos += n;
+            }
+            deflater.setInput(in, 0, total);
+            int end = MAX_HEADER;
+            while (true) {
+                if (out.length - end < 64)
+                    out = Arrays.copyOf(out, out.length * 2);
+                int space = out.length - end;
+                int n = deflater.deflate(out, end, space, Deflater.SYNC_FLUSH);
+                end += n;
+                // the flush is complete once the deflater leaves room in the output
+                if (n < space)
+                    break;
+            }
+            // put the header right in front of the data
+            int len = end - MAX_HEADER;
+            ByteBuffer h = header(DEFLATE, len);
+            int start = MAX_HEADER - h.remaining();
+            h.get(out, start, h.remaining());
+            return ByteBuffer.wrap(Arrays.copyOfRange(out, start, end));
+        }
+
+        public void end() {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Client side, turns the received blocks back into protocol data.
+     */
+    public static class Decoder {
+
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buf = new byte[4096];
+        private int len = 0;
+        private final byte[] out = new byte[8192];
+        private boolean confirmed = false;
+
+        /**
+         * Appends received bytes and hands the contents of every complete block to the frame decoder.
+         * The first byte must be the HELLO sent back by the server.
+         * @param in the received bytes, consumed completely
+         * @param frames decoder receiving the protocol data
+         * @throws IOException if the server did not confirm compression or sent a malformed block
+         */
+        public void feed(ByteBuffer in, FrameDecoder frames) throws IOException {
+            if (!confirmed && in.hasRemaining()) {
+                if (in.get() != HELLO)
+                    throw new IOException("Server does not support compression");
+                confirmed = true;
+            }
+            int n = in.remaining();
+            if (len + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            in.get(buf, len, n);
+            len += n;
+            int pos = 0;
+            while (len - pos >= 2) {
+                byte flag = buf[pos];
+                long l = BinaryCodec.readLength(buf, pos + 1, len - pos - 1);
+                if (l < 0) {
+                    if (len - pos - 1 >= 5)
+                        throw new IOException("Malformed block length");
+                    break;
+                }
+                int body = pos + 1 + (int)(l >>> 32);
+                int size = (int)l;
+                if (size < 0 || len - body < size)
+                    break;
+                if (flag == RAW) {
+                    frames.append(ByteBuffer.wrap(buf, body, size));
+                } else if (flag == DEFLATE) {
+                    inflater.setInput(buf, body, size);
+                    try {
+                        int k;
+                        while ((k = inflater.inflate(out)) > 0)
+                            frames.append(ByteBuffer.wrap(out, 0, k));
+                    } catch (DataFormatException e) {
+                        throw new IOException("Malformed deflate block", e);
+                    }
+                } else {
+                    throw new IOException("Unknown block type " + flag);
+                }
+                pos = body + size;
+            }
+            System.arraycopy(buf, pos, buf, 0, len - pos);
+            len -= pos;
+        }
+
+        public void end() {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer header(byte flag, int len) {
+        byte[] h = new byte[MAX_HEADER];
+        int p = 0;
+        h[p++] = flag;
+        while ((len & ~0x7F) != 0) {
+            h[p++] = (byte)((len & 0x7F) | 0x80);
+            len >>>= 7;
+        }
+        h[p++] = (byte)len;
+        return ByteBuffer.wrap(h, 0, p);
+    }
+}
@@ -0,0 +1,216 @@
+package org.toastcarsten.shared;
+
+import org.toastcarsten.errors.FrameTooLongException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder for newline terminated frames, or length prefixed frames in binary mode (see {@link BinaryCodec}).
+ * Bytes that do not form a complete frame yet are kept until the next read,
+ * so a frame may be split over any number of reads and a read may contain any number of frames.
+ */
+public class FrameDecoder {
+
+    public static final int MAX_FRAME = 64 * 1024;
+    private static final int INITIAL_SIZE = 256;
+
+    private final BufferPool pool;
+    private byte[] buf = new byte[INITIAL_SIZE];
+    // buf[start, end) holds undelivered bytes, buf[start, scan) is known to contain no newline
+    private int start = 0;
+    private int scan = 0;
+    private int end = 0;
+    // set after a frame exceeded MAX_FRAME: everything up to the next newline is dropped
+    private boolean discarding = false;
+    private boolean binary = false;
+    private int frameOffset = 0;
+    private int frameLength = 0;
+
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads once from the channel into a pooled buffer and appends the data to the pending bytes.
+     * @param ch the channel to read from
+     * @return the number of bytes read, or -1 if the channel has reached end-of-stream
+     * @throws FrameTooLongException if a text line exceeds {@link #MAX_FRAME} bytes, it is dropped and decoding can go on
+     * @throws IOException if reading fails or a binary frame exceeds {@link #MAX_FRAME} bytes
+     */
+    public int read(ReadableByteChannel ch) throws IOException {
+        ByteBuffer in = pool.acquire();
+        try {
+            int numbytes = ch.read(in);
+            if (numbytes > 0) {
+                in.flip();
+                append(in);
+            }
+            return numbytes;
+        } finally {
+            pool.release(in);
+        }
+    }
+
+    /**
+     * Appends raw bytes to the pending bytes.
+     * @param in buffer whose remaining bytes are consumed
+     * @throws FrameTooLongException if a text line exceeds {@link #MAX_FRAME} bytes, it is dropped and decoding can go on
+     * @throws IOException if a binary frame exceeds {@link #MAX_FRAME} bytes, the stream is unusable then
+     */
+    public void append(ByteBuffer in) throws IOException {
+        if (start == end) {
+            // everything has been delivered, start over at the front of the (possibly shrunk) buffer
+            reset();
+        }
+        int n = in.remaining();
+        if (end + n > buf.length) {
+            // make room: move pending bytes to the front, grow if that is not enough
+            int pending = end - start;
+            byte[] dst = buf;
+            if (pending + n > buf.length)
+                dst = new byte[Math.max(pending + n, Math.min(buf.length * 2, MAX_FRAME + n))];
+            System.arraycopy(buf, start, dst, 0, pending);
+            buf = dst;
+            scan -= start;
+            end = pending;
+            start = 0;
+        }
+        in.get(buf, end, n);
+        end += n;
+        if (binary) {
+            long l = BinaryCodec.readLength(buf, start, end - start);
+            if ((l < 0 && end - start >= 5) || (l >= 0 && ((int)l < 0 || (int)l > MAX_FRAME))) {
+                // there is no way to find the next frame, the stream is unusable
+                reset();
+                throw new IOException("Message Frame error: binary frame exceeds " + MAX_FRAME + " bytes");
+            }
+        }
+        else if (end - start > MAX_FRAME && indexOfNewline(scan) < 0) {
+            // no newline in sight, drop the frame instead of buffering without bound
+            reset();
+            discarding = true;
+            throw new FrameTooLongException("Message Frame error: frame exceeds " + MAX_FRAME + " bytes", n);
+        }
+    }
+
+    /**
+     * Advances to the next complete frame, if there is one.
+     * The frame is then available via {@link #array()}, {@link #frameOffset()} and {@link #frameLength()}
+     * until the next call to {@link #next()} or {@link #read(ReadableByteChannel)}.
+     * @return true if a complete frame is available
+     */
+    public boolean next() {
+        if (binary)
+            return nextBinary();
+        while (true) {
+            int nl = indexOfNewline(scan);
+            if (nl < 0) {
+                scan = end;
+                if (discarding)
+                    reset();
+                return false;
+            }
+            int off = start;
+            int len = nl - start;
+            start = scan = nl + 1;
+            if (discarding) {
+                // tail of an oversized frame
+                discarding = false;
+                continue;
+            }
+            if (len > 0 && buf[off + len - 1] == '\r')
+                --len;
+            frameOffset = off;
+            frameLength = len;
+            return true;
+        }
+    }
+
+    private boolean nextBinary() {
+        long l = BinaryCodec.readLength(buf, start, end - start);
+        if (l < 0)
+            return false;
+        int prefix = (int)(l >>> 32);
+        int len = (int)l;
+        if (len < 0 || len > MAX_FRAME || end - start - prefix < len)
+            return false;
+        frameOffset = start + prefix;
+        frameLength = len;
+        start = scan = frameOffset + len;
+        return true;
+    }
+
+    /**
+     * Consumes the first pending byte if it has the given value.
+     * Used to detect a protocol preamble before any frame has been decoded.
+     * @param b the expected byte
+     * @return true if the byte was there and has been consumed
+     */
+    public boolean skipIf(byte b) {
+        if (start == end || buf[start] != b)
+            return false;
+        ++start;
+        if (scan < start)
+            scan = start;
+        return true;
+    }
+
+    /**
+     * Switches between newline terminated (text) and length prefixed (binary) frames.
+     * @param binary true for binary frames
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+        scan = start;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Convenience method that advances to the next frame and decodes it as UTF-8.
+     * @return the next frame without its line terminator, or null if there is no complete frame
+     */
+    public String nextFrame() {
+        if (!next())
+            return null;
+        return new String(buf, frameOffset, frameLength, StandardCharsets.UTF_8);
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int frameOffset() {
+        return frameOffset;
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return the number of buffered bytes that do not form a complete frame yet
+     */
+    public int pending() {
+        return end - start;
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < end; ++i) {
+            if (buf[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private void reset() {
+        start = scan = end = 0;
+        if (buf.length > INITIAL_SIZE * 4)
+            buf = new byte[INITIAL_SIZE];
+    }
+}
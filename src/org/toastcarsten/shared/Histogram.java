@@ -0,0 +1,98 @@
+package org.toastcarsten.shared;
+
+/**
+ * A log-linear histogram of non-negative long values, in the spirit of HdrHistogram.
+ * Values are grouped by their highest set bit, and every such group is split into
+ * 2^{@value #SUB_BITS} linear sub-buckets, so the relative error of any reported value is below 2^-{@value #SUB_BITS}.
+ * Recording is a few arithmetic operations and one array increment, it never allocates.
+ * A histogram is not thread-safe, each recording thread should have its own and merge them with {@link #add(Histogram)}.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_COUNT];
+    private long total = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param v the value
+     */
+    public void record(long v) {
+        if (v < 0)
+            v = 0;
+        ++counts[indexOf(v)];
+        ++total;
+        sum += v;
+        if (v > max)
+            max = v;
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one.
+     * @param other the histogram to merge
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; ++i)
+            counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        total = sum = max = 0;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double)sum / total;
+    }
+
+    /**
+     * @param p percentile between 0 and 100
+     * @return the highest value of the bucket holding the given percentile, or 0 if nothing has been recorded
+     */
+    public long percentile(double p) {
+        if (total == 0)
+            return 0;
+        long rank = (long)Math.ceil(p / 100.0 * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT)
+            return (int)v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lowest = (1L << exp) | (sub << (exp - SUB_BITS));
+        return lowest + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -22,6 +22,24 @@ public interface IClient {
      */
     void recvUserlist(Collection<String> list);
 
+    /**
+     * Called to handle a page of the versioned userlist sent by the server.
+     * @param version version of the list, to be passed to a later /userlist request
+     * @param page number of this page, starting at 1
+     * @param pages number of pages of the list
+     * @param list usernames on this page
+     */
+    void recvUserlistPage(long version, int page, int pages, Collection<String> list);
+
+    /**
+     * Called to handle the changes to the userlist since a version the client requested them for.
+     * @param since the version the changes apply to
+     * @param version the version after the changes
+     * @param added usernames that have been added
+     * @param removed usernames that have been removed
+     */
+    void recvUserlistDelta(long since, long version, Collection<String> added, Collection<String> removed);
+
     /**
      * Called to handle the event that the chosen name is already taken.
      */
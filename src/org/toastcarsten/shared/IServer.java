@@ -27,9 +27,83 @@ public interface IServer {
      */
     void broadcast(String text) throws IOException;
 
+    /**
+     * Sends a message from a sender to everyone else in a room
+     * @param room name of the room
+     * @param sender username of the sender
+     * @param text message to send
+     * @throws IOException
+     */
+    void roomcast(String room, String sender, String text) throws IOException;
+
+    /**
+     * Tells everyone that a user is gone. Leaves and joins close together may go out as one line.
+     * @param user name of the user
+     * @param reason why
+     */
+    void left(String user, Protocol.Reason reason);
+
+    /**
+     * Sends an error to a single user
+     * @param user username of the user to send the error to
+     * @param error the error
+     * @throws IOException
+     */
+    void sendError(String user, Protocol.Error error) throws IOException;
+
+    /**
+     * Sends the list of everyone to a single user
+     * @param user username of the user to send the list to
+     * @param since version of the list the user already has, or -1 for the full list
+     * @throws IOException
+     */
+    void sendUserlist(String user, long since) throws IOException;
+
+    /**
+     * Sends a chat line from a sender to everyone else in the conversation and keeps it for users who join later
+     * @param room name of the room, or null for the conversation of everyone
+     * @param sender username of the sender
+     * @param line the line as it is sent to the other users
+     * @throws IOException
+     */
+    void chat(String room, String sender, String line) throws IOException;
+
+    /**
+     * Adds a user to a room and makes it the room the user's messages go to
+     * @param user name of the user
+     * @param room name of the room, created if it does not exist
+     * @throws IOException
+     */
+    void join(String user, String room) throws IOException;
+
+    /**
+     * Removes a user from a room
+     * @param user name of the user
+     * @param room name of the room, or "" for the room the user's messages currently go to
+     * @throws IOException
+     */
+    void part(String user, String room) throws IOException;
+
+    /**
+     * @param user name of the user
+     * @return the room the user's messages go to, or null if they go to everyone
+     */
+    String getRoom(String user);
+
     /**
      * Remove the specified user from the channel
      * @param user name of the user to be removed
      */
     void logout(String user) throws IOException;
+
+    /**
+     * @param user name of a user
+     * @return true if the user may use admin commands
+     */
+    boolean isAdmin(String user);
+
+    /**
+     * @return a one-line summary of the runtime statistics of the server
+     */
+    String stats();
 }
@@ -1,13 +1,12 @@
 package org.toastcarsten.shared;
 
-import org.toastcarsten.errors.CommandArgumentParsingException;
 import org.toastcarsten.errors.CommandNotFoundException;
+import org.toastcarsten.server.Room;
 import org.toastcarsten.server.User;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Protocol {
 
@@ -78,7 +77,7 @@ public class Protocol {
             try {
                 server.send(user, "Goodbye!");
                 server.logout(user);
-                server.broadcast(new UserLeft(user, Reason.logout).toString());
+                server.left(user, Reason.logout);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -86,17 +85,84 @@ public class Protocol {
     }
 
     public class UserlistRequest extends ClientCommand {
+
+        String room;
+        // version of the list the client already has, -1 for none
+        long since = -1;
+
         public UserlistRequest() {
+            this("");
+        }
+
+        /**
+         * @param room name of the room whose members are requested, or "" for everyone
+         */
+        public UserlistRequest(String room) {
             cmd = "/userlist";
+            args = room;
+            this.room = room;
+        }
+
+        /**
+         * Requests the changes to the list of everyone since a version the client got earlier.
+         * @param since the version
+         */
+        public UserlistRequest(long since) {
+            this("");
+            this.since = since;
+            args = Long.toString(since);
+        }
+
+        @Override
+        public void action(String user) {
+            try {
+                if (room.isEmpty()) {
+                    // the server keeps the list of everyone encoded, see sendUserlist
+                    server.sendUserlist(user, since);
+                } else {
+                    Collection<String> names = new ArrayList<>();
+                    Room r = Room.get(room);
+                    if (r != null) {
+                        for (User u : r.getMembers())
+                            names.add(u.getName());
+                    }
+                    server.send(user, new UserlistAnswer(room, names).toString());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public class Join extends ClientCommand {
+        public Join(String room) {
+            cmd = "/join";
+            args = room;
+        }
+
+        @Override
+        public void action(String user) {
+            try {
+                server.join(user, args);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public class Part extends ClientCommand {
+        /**
+         * @param room name of the room to leave, or "" for the room the user currently talks in
+         */
+        public Part(String room) {
+            cmd = "/part";
+            args = room;
         }
 
         @Override
         public void action(String user) {
             try {
-                Collection<String> names = new ArrayList<>();
-                for (User u : User.getParticipants())
-                    names.add(u.getName());
-                server.send(user, new UserlistAnswer(names).toString());
+                server.part(user, args);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -112,7 +178,27 @@ public class Protocol {
         @Override
         public void action(String user) {
             try {
-                server.multicast(user, user + ": " + args);
+                String room = server.getRoom(user);
+                String line = room == null ? user + ": " + args : new RoomMessage(room, user, args).toString();
+                server.chat(room, user, line);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public class StatsRequest extends ClientCommand {
+        public StatsRequest() {
+            cmd = "/stats";
+        }
+
+        @Override
+        public void action(String user) {
+            try {
+                if (!server.isAdmin(user))
+                    server.sendError(user, Error.CommandNotAllowed);
+                else
+                    server.send(user, new StatsAnswer(server.stats()).toString());
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -121,7 +207,7 @@ public class Protocol {
 
     // --------------- Server Commands ---------------
     public static enum Error {
-        NameAlreadyInUse, CommandNotAllowed, CommandNotFound
+        NameAlreadyInUse, CommandNotAllowed, CommandNotFound, SlowConsumer, RateLimited, LineTooLong
     }
     public class ErrorMessage extends ServerCommand {
 
@@ -141,44 +227,75 @@ public class Protocol {
                 client.printHl("The given command is not allowed in this context.");
             } else if (error == Error.CommandNotFound) {
                 client.printHl("You have entered an invalid command.");
+            } else if (error == Error.SlowConsumer) {
+                client.printHl("You have been disconnected because you did not keep up with the messages.");
+            } else if (error == Error.RateLimited) {
+                client.printHl("You are sending too fast, the server slows down reading your messages.");
+            } else if (error == Error.LineTooLong) {
+                client.printHl("Your message was too long and has been dropped.");
             }
         }
     }
 
     public static enum Reason {
-        timeout, logout
+        timeout, logout, evicted
     }
+    // separates the names of users that joined or left at about the same time, "/userjoined a,b,c"
+    static final String batchSep = ",";
+
     public class UserLeft extends ServerCommand {
 
         Reason reason;
-        String name;
+        List<String> names;
 
         public UserLeft(String username, Reason r) {
+            this(Collections.singletonList(username), r);
+        }
+
+        /**
+         * @param usernames users that left for the same reason, at least one
+         * @param r why
+         */
+        public UserLeft(Collection<String> usernames, Reason r) {
             cmd = "/userleft";
-            name = username;
-            args = username + " " + r.name();
+            names = new ArrayList<>(usernames);
+            args = String.join(batchSep, names) + " " + r.name();
             reason = r;
         }
 
         @Override
         public void action() {
+            String who = String.join(", ", names);
             if (reason == Reason.logout) {
-                client.printHl(name + " left the channel.");
+                client.printHl(who + " left the channel.");
             } else if (reason == Reason.timeout) {
-                client.printHl(name + " timed out.");
+                client.printHl(who + " timed out.");
+            } else if (reason == Reason.evicted) {
+                client.printHl(who + (names.size() == 1 ? " was" : " were") + " disconnected for not keeping up.");
             }
         }
     }
 
     public class UserJoined extends ServerCommand {
+
+        List<String> names;
+
         public UserJoined(String username) {
+            this(Collections.singletonList(username));
+        }
+
+        /**
+         * @param usernames users that joined, at least one
+         */
+        public UserJoined(Collection<String> usernames) {
             cmd = "/userjoined";
-            args = username;
+            names = new ArrayList<>(usernames);
+            args = String.join(batchSep, names);
         }
 
         @Override
         public void action() {
-            client.printHl(args + " just joined.");
+            client.printHl(String.join(", ", names) + " just joined.");
         }
     }
 
@@ -197,23 +314,136 @@ public class Protocol {
     public class UserlistAnswer extends ServerCommand {
 
         private static final String sep = ", ";
+        Collection<String> users;
+        String room;
+        // versioned answers only: the list is page of pages at version, or the changes from since to version
+        long since = -1;
+        long version = -1;
+        int page, pages;
+        Collection<String> removed;
 
         public UserlistAnswer(Collection<String> users) {
+            this("", users);
+        }
+
+        /**
+         * A page of the list of everyone, "/userlist 42 1/3 name, name".
+         * @param version version of the list
+         * @param page number of this page, starting at 1
+         * @param pages number of pages the list has been split into
+         * @param users the names on this page
+         */
+        public UserlistAnswer(long version, int page, int pages, Collection<String> users) {
+            cmd = "/userlist";
+            this.users = users;
+            this.room = "";
+            this.version = version;
+            this.page = page;
+            this.pages = pages;
+            StringJoiner sj = new StringJoiner(sep, version + " " + page + "/" + pages + (users.isEmpty() ? "" : " "), "");
+            users.forEach(sj::add);
+            args = sj.toString();
+        }
+
+        /**
+         * The changes to the list of everyone between two versions, "/userlist 40..42 +name -name".
+         * @param since the version the client has
+         * @param version the current version
+         * @param added names that have logged in since
+         * @param removed names that have logged out since
+         */
+        public UserlistAnswer(long since, long version, Collection<String> added, Collection<String> removed) {
+            cmd = "/userlist";
+            this.users = added;
+            this.removed = removed;
+            this.room = "";
+            this.since = since;
+            this.version = version;
+            StringBuilder sb = new StringBuilder().append(since).append("..").append(version);
+            for (String name : added)
+                sb.append(" +").append(name);
+            for (String name : removed)
+                sb.append(" -").append(name);
+            args = sb.toString();
+        }
+
+        /**
+         * @param room name of the room the users are members of, or "" for everyone
+         * @param users the names
+         */
+        public UserlistAnswer(String room, Collection<String> users) {
             cmd = "/userlist";
-            StringJoiner sj = new StringJoiner(sep);
+            this.users = users;
+            this.room = room;
+            StringJoiner sj = new StringJoiner(sep, room.isEmpty() ? "" : room + " ", "");
             users.forEach(sj::add);
             args = sj.toString();
         }
 
         @Override
         public void action() {
-            List<String> ul = Arrays.asList(args.split(sep));
-            client.recvUserlist(ul);
+            if (removed != null)
+                client.recvUserlistDelta(since, version, users, removed);
+            else if (version >= 0)
+                client.recvUserlistPage(version, page, pages, users);
+            else
+                client.recvUserlist(users);
+        }
+    }
+
+    public class RoomMessage extends ServerCommand {
+
+        String room;
+        String user;
+        String message;
+
+        public RoomMessage(String room, String user, String message) {
+            this.room = room;
+            this.user = user;
+            this.message = message;
+            args = room + " " + user + ": " + message;
+        }
+
+        @Override
+        public void action() {
+            client.print(this.toString());
+        }
+    }
+
+    public class RoomJoined extends ServerCommand {
+        public RoomJoined(String room, String username) {
+            cmd = "/joined";
+            args = room + " " + username;
+        }
+
+        @Override
+        public void action() {
+            int sp = args.indexOf(' ');
+            client.printHl(args.substring(sp + 1) + " joined " + args.substring(0, sp) + ".");
+        }
+    }
+
+    public class RoomParted extends ServerCommand {
+        public RoomParted(String room, String username) {
+            cmd = "/parted";
+            args = room + " " + username;
+        }
+
+        @Override
+        public void action() {
+            int sp = args.indexOf(' ');
+            client.printHl(args.substring(sp + 1) + " left " + args.substring(0, sp) + ".");
         }
     }
 
     public class RedirectedMessage extends ServerCommand {
+
+        String user;
+        String message;
+
         public RedirectedMessage(String user, String message) {
+            this.user = user;
+            this.message = message;
             args = user + ": " + message;
         }
 
@@ -223,6 +453,18 @@ public class Protocol {
         }
     }
 
+    public class StatsAnswer extends ServerCommand {
+        public StatsAnswer(String stats) {
+            cmd = "/stats";
+            args = stats;
+        }
+
+        @Override
+        public void action() {
+            client.printHl("[Server statistics] " + args);
+        }
+    }
+
     public class ServerMessage extends ServerCommand {
         public ServerMessage(String message) {
             cmd = "/server";
@@ -236,8 +478,12 @@ public class Protocol {
     }
 
     public class Welcome extends ServerCommand {
+
+        String name;
+
         public Welcome(String username) {
             cmd = "/welcome";
+            name = username;
             args = "Hi, " + username + "! Welcome to the Toastcarsten Server.";
         }
 
@@ -248,109 +494,377 @@ public class Protocol {
     }
 
     // --------------- Command Parsing ---------------
-    private final static Pattern
-            rLogin =             Pattern.compile("\\/login ([a-zA-Z0-9]+)"),
-            rLogout =            Pattern.compile("\\/logout(?: (.+))?"),
-            rUserlistRequest =   Pattern.compile("\\/userlist"),
-            rMessage =           Pattern.compile("[^\\/].+"),
-            rError =             Pattern.compile("\\/error (NameAlreadyInUse|CommandNotAllowed|CommandNotFound)"),
-            rUserleft =          Pattern.compile("\\/userleft ([a-zA-Z0-9]+) (timeout|logout)"),
-            rUserjoined =        Pattern.compile("\\/userjoined ([a-zA-Z0-9]+)"),
-            rUsertimeout =       Pattern.compile("\\/usertimeout ([a-zA-Z0-9]+)"),
-            rUserlistAnswer =    Pattern.compile("\\/userlist ((?:(?:[a-zA-Z0-9]+)(?:, )?)+)"),
-            rRedirectedMessage = Pattern.compile("([a-zA-Z0-9]+)\\: (.+)"),
-            rServerMessage =     Pattern.compile("\\/server (.+)"),
-            rWelcome =           Pattern.compile("\\/welcome ([a-zA-Z0-9]+)");
-
-    /**
-     * Get arguments of a command
-     * @param m A matcher object created from the regex and the matching string.
-     * @param n the amount of arguments to return
-     * @return String array of arguments
-     * @throws CommandArgumentParsingException
-     */
-    private String[] getArgs(Matcher m, int n) throws CommandArgumentParsingException{
-        String[] result = new String[n];
-        try {
-            for (int i = 0; i < n; ++i) {
-                // exclude "0th" capturing group, that would be the whole match
-                result[i] = m.group(i + 1);
-            }
-            return result;
-        } catch (Exception e) {
-            throw new CommandArgumentParsingException("An error occured while extracting command arguments from command");
-        }
-    }
+    private final static byte[]
+            bLogin =             ascii("/login "),
+            bLogout =            ascii("/logout"),
+            bUserlistRequest =   ascii("/userlist"),
+            bStatsRequest =      ascii("/stats"),
+            bJoin =              ascii("/join "),
+            bPart =              ascii("/part");
+    private final static String
+            sError =             "/error",
+            sUserleft =          "/userleft",
+            sUserjoined =        "/userjoined",
+            sUsertimeout =       "/usertimeout",
+            sUserlistAnswer =    "/userlist",
+            sServerMessage =     "/server",
+            sStatsAnswer =       "/stats",
+            sRoomJoined =        "/joined",
+            sRoomParted =        "/parted",
+            sWelcome =           "/welcome";
+
+    // commands without arguments carry no state, so one instance serves every parse
+    final Logout logout = new Logout();
+    final UserlistRequest userlistRequest = new UserlistRequest();
+    final StatsRequest statsRequest = new StatsRequest();
 
     /**
      * Parses a client command.
      * Should almost always be called by the server.
      * @param raw The raw command string
-     * @return the corresponding Command object, or null if the command was not found.
+     * @return the corresponding Command object
+     * @throws CommandNotFoundException if the command was not found.
      */
     public Command parseClient(String raw) throws CommandNotFoundException {
-        Matcher m;
-        try {
-            if ( (m = rLogin.matcher(raw)).matches()) {
-                return new Login(getArgs(m, 1)[0]);
-            }
-            else if ((m = rLogout.matcher(raw)).matches()) {
-                return new Logout();
-            }
-            else if ((m = rUserlistRequest.matcher(raw)).matches()) {
-                return new UserlistRequest();
-            }
-            else if ((m = rMessage.matcher(raw)).matches()){
-                return new Message(raw);
-            }
-        } catch (CommandArgumentParsingException e) {
-            throw new CommandNotFoundException("The given command could not be evaluated: " + raw);
+        byte[] b = raw.getBytes(StandardCharsets.UTF_8);
+        return parseClient(b, 0, b.length);
+    }
+
+    /**
+     * Parses a client command directly from a received frame.
+     * Dispatches on the first byte and the command keyword, so each line is looked at once
+     * and only the arguments that end up in the command are turned into Strings.
+     * @param buf buffer holding the frame
+     * @param off offset of the frame in buf
+     * @param len length of the frame, without line terminator
+     * @return the corresponding Command object
+     * @throws CommandNotFoundException if the command was not found.
+     */
+    public Command parseClient(byte[] buf, int off, int len) throws CommandNotFoundException {
+        if (len > 0 && buf[off] != '/') {
+            // plain chat line, the most common case
+            if (len < 2)
+                throw new CommandNotFoundException("The given command could not be evaluated: " + utf8(buf, off, len));
+            return new Message(utf8(buf, off, len));
         }
-        // the given text does not match any of the patterns
-        throw new CommandNotFoundException("The given command could not be evaluated: " + raw);
+        if (startsWith(buf, off, len, bLogin)) {
+            int n = bLogin.length;
+            if (isName(buf, off + n, len - n))
+                return new Login(new String(buf, off + n, len - n, StandardCharsets.US_ASCII));
+        }
+        else if (startsWith(buf, off, len, bLogout)) {
+            // "/logout" may be followed by a farewell text, which is ignored
+            int n = bLogout.length;
+            if (len == n || (len > n + 1 && buf[off + n] == ' '))
+                return logout;
+        }
+        else if (startsWith(buf, off, len, bUserlistRequest)) {
+            int n = bUserlistRequest.length;
+            if (len == n)
+                return userlistRequest;
+            if (buf[off + n] == ' ' && isRoom(buf, off + n + 1, len - n - 1))
+                return new UserlistRequest(new String(buf, off + n + 1, len - n - 1, StandardCharsets.US_ASCII));
+            long since = buf[off + n] == ' ' ? parseVersion(buf, off + n + 1, len - n - 1) : -1;
+            if (since >= 0)
+                return new UserlistRequest(since);
+        }
+        else if (startsWith(buf, off, len, bJoin)) {
+            int n = bJoin.length;
+            if (isRoom(buf, off + n, len - n))
+                return new Join(new String(buf, off + n, len - n, StandardCharsets.US_ASCII));
+        }
+        else if (startsWith(buf, off, len, bPart)) {
+            int n = bPart.length;
+            if (len == n)
+                return new Part("");
+            if (buf[off + n] == ' ' && isRoom(buf, off + n + 1, len - n - 1))
+                return new Part(new String(buf, off + n + 1, len - n - 1, StandardCharsets.US_ASCII));
+        }
+        else if (len == bStatsRequest.length && startsWith(buf, off, len, bStatsRequest)) {
+            return statsRequest;
+        }
+        // the given text does not match any of the commands
+        throw new CommandNotFoundException("The given command could not be evaluated: " + utf8(buf, off, len));
     }
 
     /**
      * Parses a server command.
      * Should almost always be called by the client.
      * @param raw The raw command string
-     * @return the corresponding Command object, or null if the command was not found.
+     * @return the corresponding Command object
+     * @throws CommandNotFoundException if the command was not found.
      */
-    public Command parseServer(String raw) throws CommandNotFoundException{
-        try {
-            Matcher m;
-            if ((m = rError.matcher(raw)).matches()) {
-                String err = getArgs(m, 1)[0];
-                return new ErrorMessage(Error.valueOf(err));
+    public Command parseServer(String raw) throws CommandNotFoundException {
+        int len = raw.length();
+        if (len > 0 && raw.charAt(0) == '/') {
+            int sp = raw.indexOf(' ');
+            int kw = sp < 0 ? len : sp;
+            // arguments start after the space following the keyword
+            int a = kw + 1;
+            if (isKeyword(raw, kw, sError)) {
+                Error err = errorOf(raw, a);
+                if (err != null)
+                    return new ErrorMessage(err);
             }
-            else if ((m = rUserleft.matcher(raw)).matches()) {
-                String[] args = getArgs(m, 2);
-                return new UserLeft(args[0], Reason.valueOf(args[1]));
+            else if (isKeyword(raw, kw, sUserleft)) {
+                // "/userleft a,b,c reason"
+                int sp2 = raw.indexOf(' ', a);
+                List<String> names = sp2 > 0 ? splitNames(raw, a, sp2, batchSep) : null;
+                Reason r = sp2 > 0 ? reasonOf(raw, sp2 + 1) : null;
+                if (names != null && r != null)
+                    return new UserLeft(names, r);
             }
-            else if ((m = rUserjoined.matcher(raw)).matches()) {
-                return new UserJoined(getArgs(m, 1)[0]);
+            else if (isKeyword(raw, kw, sUserjoined)) {
+                // "/userjoined a,b,c"
+                List<String> names = splitNames(raw, a, len, batchSep);
+                if (names != null)
+                    return new UserJoined(names);
             }
-            else if ((m = rUsertimeout.matcher(raw)).matches()) {
+            else if (isKeyword(raw, kw, sUsertimeout)) {
                 return new UserTimeout();
             }
-            else if ((m = rUserlistAnswer.matcher(raw)).matches()) {
-                String users = getArgs(m, 1)[0];
-                return new UserlistAnswer(Arrays.asList(users.split(", ")));
+            else if (isKeyword(raw, kw, sUserlistAnswer)) {
+                if (a < len && raw.charAt(a) == '#') {
+                    // "/userlist #room name, name", the list of a room may be empty
+                    int sp2 = raw.indexOf(' ', a);
+                    int end = sp2 < 0 ? len : sp2;
+                    if (isRoom(raw, a, end)) {
+                        List<String> users = sp2 < 0 ? new ArrayList<>() : splitNames(raw, sp2 + 1);
+                        if (users != null)
+                            return new UserlistAnswer(raw.substring(a, end), users);
+                    }
+                } else {
+                    UserlistAnswer versioned = parseVersionedUserlist(raw, a);
+                    if (versioned != null)
+                        return versioned;
+                    List<String> users = splitNames(raw, a);
+                    if (users != null)
+                        return new UserlistAnswer(users);
+                }
+            }
+            else if (isKeyword(raw, kw, sRoomJoined) || isKeyword(raw, kw, sRoomParted)) {
+                int sp2 = raw.indexOf(' ', a);
+                if (sp2 > 0 && isRoom(raw, a, sp2) && isName(raw, sp2 + 1, len)) {
+                    String room = raw.substring(a, sp2);
+                    String name = raw.substring(sp2 + 1);
+                    return raw.charAt(1) == 'j' ? new RoomJoined(room, name) : new RoomParted(room, name);
+                }
+            }
+            else if (isKeyword(raw, kw, sServerMessage)) {
+                if (a < len)
+                    return new ServerMessage(raw.substring(a));
             }
-            else if ((m = rServerMessage.matcher(raw)).matches()) {
-                return new ServerMessage(getArgs(m, 1)[0]);
+            else if (isKeyword(raw, kw, sStatsAnswer)) {
+                if (a < len)
+                    return new StatsAnswer(raw.substring(a));
             }
-            else if ((m = rWelcome.matcher(raw)).matches()) {
-                return new Welcome(getArgs(m, 1)[0]);
+            else if (isKeyword(raw, kw, sWelcome)) {
+                if (isName(raw, a, len))
+                    return new Welcome(raw.substring(a));
             }
-            else if ((m = rRedirectedMessage.matcher(raw)).matches()) {
-                String[] args = getArgs(m, 2);
-                return new RedirectedMessage(args[1], args[2]);
+        }
+        else if (len > 0 && raw.charAt(0) == '#') {
+            // "#<room> <user>: <message>"
+            int sp = raw.indexOf(' ');
+            int colon = raw.indexOf(':', sp + 1);
+            if (sp > 0 && colon > sp + 1 && colon + 2 < len && raw.startsWith(": ", colon)
+                    && isRoom(raw, 0, sp) && isName(raw, sp + 1, colon)) {
+                return new RoomMessage(raw.substring(0, sp), raw.substring(sp + 1, colon), raw.substring(colon + 2));
+            }
+        }
+        else {
+            // "<user>: <message>"
+            int colon = raw.indexOf(':');
+            if (colon > 0 && colon + 2 < len && raw.startsWith(": ", colon) && isName(raw, 0, colon)) {
+                return new RedirectedMessage(raw.substring(0, colon), raw.substring(colon + 2));
             }
-        } catch (CommandArgumentParsingException e) {
-            throw new CommandNotFoundException("Error parsing arguments for the given command: " + raw);
         }
-        // the given text does not match any of the patterns
+        // the given text does not match any of the commands
         throw new CommandNotFoundException("The given command could not be evaluated: " + raw);
     }
+
+    // --------------- Parsing Helpers ---------------
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String utf8(byte[] buf, int off, int len) {
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        if (len < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buf[off + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if raw[0, kwEnd) equals the keyword
+     */
+    private static boolean isKeyword(String raw, int kwEnd, String keyword) {
+        return kwEnd == keyword.length() && raw.startsWith(keyword);
+    }
+
+    private static boolean isNameChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Usernames consist of one or more ASCII letters and digits.
+     */
+    static boolean isName(byte[] buf, int off, int len) {
+        if (len <= 0)
+            return false;
+        for (int i = off; i < off + len; ++i) {
+            if (!isNameChar(buf[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isName(String s, int from, int to) {
+        if (from >= to)
+            return false;
+        for (int i = from; i < to; ++i) {
+            if (!isNameChar(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Room names are a '#' followed by one or more ASCII letters and digits.
+     */
+    static boolean isRoom(byte[] buf, int off, int len) {
+        return len > 1 && buf[off] == '#' && isName(buf, off + 1, len - 1);
+    }
+
+    private static boolean isRoom(String s, int from, int to) {
+        return to - from > 1 && s.charAt(from) == '#' && isName(s, from + 1, to);
+    }
+
+    private static Error errorOf(String raw, int from) {
+        for (Error e : Error.values()) {
+            if (raw.length() - from == e.name().length() && raw.startsWith(e.name(), from))
+                return e;
+        }
+        return null;
+    }
+
+    private static Reason reasonOf(String raw, int from) {
+        for (Reason r : Reason.values()) {
+            if (raw.length() - from == r.name().length() && raw.startsWith(r.name(), from))
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * @return the non-negative decimal number in buf, or -1 if it is none or too long
+     */
+    static long parseVersion(byte[] buf, int off, int len) {
+        if (len <= 0 || len > 18)
+            return -1;
+        long v = 0;
+        for (int i = off; i < off + len; ++i) {
+            if (buf[i] < '0' || buf[i] > '9')
+                return -1;
+            v = v * 10 + (buf[i] - '0');
+        }
+        return v;
+    }
+
+    /**
+     * @return the index after the digits starting at from, or -1 if there are none or too many
+     */
+    private static int digitsEnd(String s, int from) {
+        int i = from;
+        while (i < s.length() && i - from <= 18 && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+            ++i;
+        return i > from && i - from <= 18 ? i : -1;
+    }
+
+    /**
+     * Parses the arguments of a versioned userlist answer,
+     * "42 1/3 name, name" for a page of the full list or "40..42 +name -name" for the changes.
+     * @return the answer, or null if the arguments are neither
+     */
+    private UserlistAnswer parseVersionedUserlist(String raw, int from) {
+        int len = raw.length();
+        int e1 = digitsEnd(raw, from);
+        if (e1 < 0)
+            return null;
+        long first = Long.parseLong(raw.substring(from, e1));
+        if (raw.startsWith("..", e1)) {
+            int e2 = digitsEnd(raw, e1 + 2);
+            if (e2 < 0)
+                return null;
+            long version = Long.parseLong(raw.substring(e1 + 2, e2));
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            int i = e2;
+            while (i < len) {
+                int end = raw.indexOf(' ', i + 1);
+                if (end < 0)
+                    end = len;
+                // " +name" or " -name"
+                if (end - i < 3 || raw.charAt(i) != ' ' || !isName(raw, i + 2, end))
+                    return null;
+                char sign = raw.charAt(i + 1);
+                if (sign == '+')
+                    added.add(raw.substring(i + 2, end));
+                else if (sign == '-')
+                    removed.add(raw.substring(i + 2, end));
+                else
+                    return null;
+                i = end;
+            }
+            return new UserlistAnswer(first, version, added, removed);
+        }
+        if (e1 >= len || raw.charAt(e1) != ' ')
+            return null;
+        int slash = digitsEnd(raw, e1 + 1);
+        if (slash < 0 || slash >= len || raw.charAt(slash) != '/')
+            return null;
+        int e3 = digitsEnd(raw, slash + 1);
+        if (e3 < 0 || slash - e1 > 10 || e3 - slash > 10)
+            return null;
+        int page = Integer.parseInt(raw.substring(e1 + 1, slash));
+        int pages = Integer.parseInt(raw.substring(slash + 1, e3));
+        // the names are left out if the page is empty
+        List<String> users = e3 == len ? new ArrayList<>() : raw.charAt(e3) == ' ' ? splitNames(raw, e3 + 1) : null;
+        if (users == null)
+            return null;
+        return new UserlistAnswer(first, page, pages, users);
+    }
+
+    /**
+     * Splits a list of usernames separated by ", ".
+     * @return the names, or null if the list is empty or contains an invalid name
+     */
+    private static List<String> splitNames(String raw, int from) {
+        return splitNames(raw, from, raw.length(), UserlistAnswer.sep);
+    }
+
+    /**
+     * @return the names in raw[from, to) separated by sep, or null if there are none or one of them is not a valid name
+     */
+    private static List<String> splitNames(String raw, int from, int to, String sep) {
+        List<String> names = new ArrayList<>();
+        while (from < to) {
+            int end = raw.indexOf(sep, from);
+            if (end < 0 || end > to)
+                end = to;
+            if (!isName(raw, from, end))
+                return null;
+            names.add(raw.substring(from, end));
+            from = end + sep.length();
+        }
+        return names.isEmpty() ? null : names;
+    }
 }